@@ -1,7 +1,12 @@
 import org.apache.commons.io.FileUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -9,6 +14,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,70 +34,186 @@ class Benchmark {
 
     private static final String RESULT_FOLDER_NAME = "Results";
 
-    private FeatureLocationTechnique featureLocationTechnique;
+    // Replaced when a query abandons it, null if it could not be replaced
+    private volatile FeatureLocationTechnique featureLocationTechnique;
     private File rootFolder;
     private File resultDir;
     private String benchmarkName;
     private Map<Integer, File> queryFiles = new HashMap<>();
     private Map<Integer, File> sourceFolders = new HashMap<>();
     private Map<Integer, File> goldSetFiles = new HashMap<>();
+    private long prepareTimeout = -1;
+    private long queryTimeout = -1;
+    private volatile boolean cancelled = false;
 
     Benchmark(FeatureLocationTechnique technique, File benchmarkFolder) {
         this.featureLocationTechnique = technique;
         this.rootFolder = benchmarkFolder;
         benchmarkName = rootFolder.getName();
         initBenchmarkFiles();
+        initResultDir();
     }
 
-    List<QueryResult> run() {
-        List<QueryResult> results = new ArrayList<>();
-        int queryNumber = 1;
-        int numQueries = queryFiles.keySet().size();
+    /**
+     * Creates a benchmark that writes its per-query results to an existing result folder, e.g.
+     * one created by another process running the same benchmark.
+     */
+    Benchmark(FeatureLocationTechnique technique, File benchmarkFolder, File resultDir) {
+        this.featureLocationTechnique = technique;
+        this.rootFolder = benchmarkFolder;
+        this.resultDir = resultDir;
+        benchmarkName = rootFolder.getName();
+        initBenchmarkFiles();
+    }
+
+    String getName() {
+        return benchmarkName;
+    }
+
+    /**
+     * @return the technique the queries run with, a copy of the original one if a query abandoned
+     * it, or null if an abandoned technique could not be copied
+     */
+    FeatureLocationTechnique getTechnique() {
+        return featureLocationTechnique;
+    }
 
+    File getRootFolder() {
+        return rootFolder;
+    }
+
+    File getResultDir() {
+        return resultDir;
+    }
+
+    /**
+     * @return ids of all queries of this benchmark in ascending order
+     */
+    List<Integer> getQueryIds() {
         List<Integer> sortedQueries = new ArrayList<>(queryFiles.keySet());
         Collections.sort(sortedQueries);
+        return sortedQueries;
+    }
 
-        for (Integer id : sortedQueries) {
-            Logger.verboseLog(benchmarkName, String.format("Running query %d of %d with id %d",
-                    queryNumber++, numQueries, id));
-            File queryFile = queryFiles.get(id);
+    /**
+     * @param prepareTimeout time budget in milliseconds for preparing a codebase, negative for no limit
+     * @param queryTimeout   time budget in milliseconds for a single query, negative for no limit
+     */
+    void setTimeouts(long prepareTimeout, long queryTimeout) {
+        this.prepareTimeout = prepareTimeout;
+        this.queryTimeout = queryTimeout;
+    }
 
-            File sourceFolder = sourceFolders.get(id);
-            if (sourceFolder == null) {
-                Logger.debugLog(benchmarkName, "Missing source folder for query " + id);
-                continue;
+    /**
+     * Stops {@link #run(Consumer)} after the running query, whose result is dropped. Does not cancel
+     * the running query itself, see {@link FeatureLocationTechnique#cancel()}.
+     */
+    void cancel() {
+        cancelled = true;
+        FeatureLocationTechnique technique = featureLocationTechnique;
+        if (technique != null) {
+            technique.cancel();
+        }
+    }
+
+    /**
+     * Runs all queries in ascending id order and passes each result to the consumer as soon as it
+     * is available. Queries that could not be run are omitted.
+     */
+    void run(Consumer<QueryResult> resultConsumer) {
+        int queryNumber = 1;
+        int numQueries = queryFiles.keySet().size();
+
+        for (Integer id : getQueryIds()) {
+            if (cancelled) {
+                Logger.debugLog(benchmarkName, "Cancelled");
+                return;
             }
+            if (featureLocationTechnique == null) {
+                return;
+            }
+            int currentQuery = queryNumber++;
+            Logger.verboseLog(benchmarkName, () -> String.format("Running query %d of %d with id %d",
+                    currentQuery, numQueries, id));
 
-            File goldSetFile = goldSetFiles.get(id);
-            if (goldSetFile == null) {
-                Logger.debugLog(benchmarkName, "Missing gold set for query " + id);
-                continue;
+            QueryResult queryResult = runQuery(id);
+            if (queryResult != null && !cancelled) {
+                resultConsumer.accept(queryResult);
             }
+        }
+    }
 
+    /**
+     * Runs a single query of this benchmark.
+     *
+     * @return the result or null if the query could not be run
+     */
+    QueryResult runQuery(int id) {
+        File queryFile = queryFiles.get(id);
+
+        File sourceFolder = sourceFolders.get(id);
+        if (sourceFolder == null) {
+            Logger.debugLog(benchmarkName, "Missing source folder for query " + id);
+            return null;
+        }
 
-            QueryAnalysis queryAnalysis = new QueryAnalysis(
-                    benchmarkName, featureLocationTechnique,
-                    id, queryFile, sourceFolder, goldSetFile, resultDir);
+        File goldSetFile = goldSetFiles.get(id);
+        if (goldSetFile == null) {
+            Logger.debugLog(benchmarkName, "Missing gold set for query " + id);
+            return null;
+        }
 
-            QueryResult queryResult = queryAnalysis.run();
-            if (queryResult != null) {
-                results.add(queryResult);
-            }
+
+        QueryAnalysis queryAnalysis = new QueryAnalysis(
+                benchmarkName, featureLocationTechnique,
+                id, queryFile, sourceFolder, goldSetFile, resultDir);
+        queryAnalysis.setTimeouts(prepareTimeout, queryTimeout);
+
+        QueryResult result = queryAnalysis.run();
+        if (queryAnalysis.isTechniqueAbandoned()) {
+            replaceTechnique();
         }
+        return result;
+    }
 
-        Collections.sort(results);
+    /**
+     * Continues with a copy of the abandoned technique, made by serializing it like the coordinator
+     * does for worker processes. Techniques that are not serializable cannot be copied, the
+     * remaining queries are skipped then.
+     */
+    private void replaceTechnique() {
+        FeatureLocationTechnique abandoned = featureLocationTechnique;
+        featureLocationTechnique = null;
+        if (!(abandoned instanceof Serializable)) {
+            Logger.debugLog(benchmarkName, String.format(
+                    "Technique %s is not serializable and cannot be replaced, skipping the remaining queries",
+                    abandoned.getId()));
+            return;
+        }
 
-        return results;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(abandoned);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                featureLocationTechnique = (FeatureLocationTechnique) in.readObject();
+            }
+            Logger.debugLog(benchmarkName, "Replaced abandoned technique " + abandoned.getId());
+        } catch (IOException | ClassNotFoundException e) {
+            Logger.debugLog(benchmarkName, "Could not replace abandoned technique " + abandoned.getId()
+                    + ", skipping the remaining queries");
+            e.printStackTrace();
+        }
     }
 
     private void initBenchmarkFiles() {
         getQueries();
         getSourcesForQueries();
         getGoldSetsForQueries();
-        getResultDir();
     }
 
-    private void getResultDir() {
+    private void initResultDir() {
         String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
         File resultsDir = new File(rootFolder.getPath() + File.separator +
                 RESULT_FOLDER_NAME + "_" + featureLocationTechnique.getId() + "_" + timeStamp);
@@ -0,0 +1,100 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends a single request to a running {@link BenchmarkDaemon} and prints the response as it
+ * arrives. Exits with 1 if the daemon reports an error and with 2 if it cannot be reached.
+ * <p>
+ * Usage: BenchmarkClient [--port &lt;port&gt;] SUITE &lt;suite folder&gt; | LOCATE &lt;source folder&gt; &lt;query&gt; | STATUS | SHUTDOWN
+ */
+public class BenchmarkClient {
+    private static final String USAGE = "Usage: BenchmarkClient [--port <port>] " +
+            "SUITE <suite folder> | LOCATE <source folder> <query> | STATUS | SHUTDOWN";
+
+    public static void main(String[] args) {
+        int port = BenchmarkDaemon.DEFAULT_PORT;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--port")) {
+            port = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        String request = createRequest(args, first);
+        if (request == null) {
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            System.exit(send(port, request) ? 0 : 1);
+        } catch (IOException e) {
+            System.out.println("Could not reach daemon on port " + port + ": " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @return the request line or null if the arguments are invalid
+     */
+    private static String createRequest(String[] args, int first) {
+        if (args.length <= first) {
+            return null;
+        }
+        String command = args[first].toUpperCase();
+        int arguments = args.length - first - 1;
+        switch (command) {
+            case BenchmarkDaemon.SUITE:
+                return arguments == 1 ? command + " " + absolutePath(args[first + 1]) : null;
+            case BenchmarkDaemon.LOCATE:
+                if (arguments < 2) {
+                    return null;
+                }
+                StringBuilder query = new StringBuilder();
+                for (int i = first + 2; i < args.length; i++) {
+                    query.append(i > first + 2 ? " " : "").append(args[i]);
+                }
+                // The request is a single line
+                return command + " " + absolutePath(args[first + 1]) + "\t" + query.toString().replaceAll("\\s+", " ");
+            case BenchmarkDaemon.STATUS:
+            case BenchmarkDaemon.SHUTDOWN:
+                return arguments == 0 ? command : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String absolutePath(String path) {
+        // The daemon may run in another working directory
+        return new File(path).getAbsolutePath();
+    }
+
+    /**
+     * @return false if the daemon reported an error
+     */
+    private static boolean send(int port, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            out.println(request);
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith(BenchmarkDaemon.ERROR)) {
+                    return false;
+                }
+                if (line.startsWith(BenchmarkDaemon.DONE) || line.startsWith(BenchmarkDaemon.OK)) {
+                    return true;
+                }
+            }
+        }
+        System.out.println(BenchmarkDaemon.ERROR + " Connection closed before the request was finished");
+        return false;
+    }
+}
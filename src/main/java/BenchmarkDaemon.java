@@ -0,0 +1,272 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Resident process that runs jobs for {@link BenchmarkClient}s, so repeated evaluations do not pay
+ * for JVM startup, JIT warmup and opening indexes each time. The technique lives as long as the
+ * daemon, with it its prepared codebases, analyzers and open searchers.
+ * <p>
+ * The daemon only listens on the loopback interface. Clients send one request line and receive
+ * response lines until a line starting with {@value #DONE}, {@value #ERROR} or {@value #OK}:
+ * <pre>
+ * SUITE &lt;suite folder&gt;                 RESULT &lt;csv row&gt; per query, as each completes, then DONE &lt;csv file&gt;
+ * LOCATE &lt;source folder&gt;TAB&lt;query&gt;     HIT &lt;score&gt; &lt;class name&gt; per result, best first, then DONE
+ * STATUS                               STATUS &lt;metrics&gt;, then DONE
+ * SHUTDOWN                             OK, the daemon stops after running jobs are finished
+ * </pre>
+ * Jobs run one at a time, since techniques are not thread safe; a client whose job has to wait
+ * receives {@value #QUEUED} first. A suite is cancelled when its client disconnects, which is
+ * noticed when the next result cannot be sent.
+ * <p>
+ * A job that was cancelled, failed or had queries that did not complete disposes the technique and
+ * replaces it with a new one, so whatever state it left behind does not affect later jobs.
+ */
+public class BenchmarkDaemon {
+    static final int DEFAULT_PORT = 47300;
+
+    static final String SUITE = "SUITE";
+    static final String LOCATE = "LOCATE";
+    static final String STATUS = "STATUS";
+    static final String SHUTDOWN = "SHUTDOWN";
+
+    static final String RESULT = "RESULT";
+    static final String HIT = "HIT";
+    static final String QUEUED = "QUEUED";
+    static final String DONE = "DONE";
+    static final String ERROR = "ERROR";
+    static final String OK = "OK";
+
+    private static final String LOG_TAG = "Daemon";
+
+    private final Supplier<FeatureLocationTechnique> techniqueFactory;
+    // Only used while holding the job lock
+    private FeatureLocationTechnique technique;
+    private final int port;
+    private final ReentrantLock jobLock = new ReentrantLock(true);
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "daemon-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    /**
+     * @param techniqueFactory creates the resident technique, and its replacement after a job that
+     *                         did not end normally
+     */
+    BenchmarkDaemon(Supplier<FeatureLocationTechnique> techniqueFactory, int port) {
+        this.techniqueFactory = techniqueFactory;
+        this.technique = techniqueFactory.get();
+        this.port = port;
+    }
+
+    /**
+     * Accepts clients until a SHUTDOWN request arrives.
+     */
+    void run() throws IOException {
+        SuiteMetrics.register();
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Logger.debugLog(LOG_TAG, () -> String.format("Listening on %s:%d with %s",
+                serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(), technique.getId()));
+
+        try {
+            while (running) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // Closed by shutdown
+                    break;
+                }
+                connections.execute(() -> handle(socket));
+            }
+        } finally {
+            serverSocket.close();
+            connections.shutdown();
+            // Wait for the running job, the technique must not be torn down under it
+            jobLock.lock();
+            try {
+                technique.teardown();
+                technique.dispose();
+            } finally {
+                jobLock.unlock();
+            }
+            Logger.debugLog(LOG_TAG, "Stopped");
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String request = in.readLine();
+            if (request == null) {
+                return;
+            }
+
+            int separator = request.indexOf(' ');
+            String command = separator >= 0 ? request.substring(0, separator) : request;
+            String argument = separator >= 0 ? request.substring(separator + 1).trim() : "";
+            Logger.verboseLog(LOG_TAG, () -> "Request: " + request);
+
+            switch (command) {
+                case SUITE:
+                    runJob(out, () -> runSuite(argument, out));
+                    break;
+                case LOCATE:
+                    runJob(out, () -> locate(argument, out));
+                    break;
+                case STATUS:
+                    out.println(STATUS + " " + getStatus());
+                    out.println(DONE);
+                    break;
+                case SHUTDOWN:
+                    out.println(OK);
+                    shutdown();
+                    break;
+                default:
+                    out.println(ERROR + " Unknown command " + command);
+            }
+        } catch (IOException e) {
+            Logger.debugLog(LOG_TAG, "Connection failed: " + e.getMessage());
+        }
+    }
+
+    private interface Job {
+        void run() throws IOException;
+    }
+
+    private void runJob(PrintWriter out, Job job) {
+        if (!jobLock.tryLock()) {
+            out.println(QUEUED);
+            jobLock.lock();
+        }
+        try {
+            if (!running) {
+                out.println(ERROR + " Daemon is shutting down");
+                return;
+            }
+            if (out.checkError()) {
+                Logger.debugLog(LOG_TAG, "Client disconnected while its job was queued");
+                return;
+            }
+            job.run();
+        } catch (IOException | RuntimeException e) {
+            Logger.debugLog(LOG_TAG, "Job failed: " + e.getMessage());
+            e.printStackTrace();
+            out.println(ERROR + " " + e.getMessage());
+            replaceTechnique();
+        } finally {
+            jobLock.unlock();
+        }
+    }
+
+    private void runSuite(String suiteFolder, PrintWriter out) {
+        long startTime = System.nanoTime();
+        BenchmarkSuite suite = new BenchmarkSuite(technique, suiteFolder)
+                .setRetainResults(false);
+        AtomicBoolean allCompleted = new AtomicBoolean(true);
+        suite.setResultListener((benchmarkName, result) -> {
+            if (result.getOutcome() != QueryResult.Outcome.COMPLETED) {
+                allCompleted.set(false);
+            }
+            out.println(RESULT + " " + benchmarkName.replaceAll(",", "") + "," + result);
+            if (out.checkError()) {
+                suite.cancel();
+            }
+        });
+        suite.runBenchmarks();
+
+        if (suite.isCancelled()) {
+            Logger.debugLog(LOG_TAG, "Client disconnected, cancelled suite " + suiteFolder);
+            replaceTechnique();
+            return;
+        }
+        Logger.debugLog(LOG_TAG, () -> String.format("Ran suite %s in %d ms",
+                suiteFolder, (System.nanoTime() - startTime) / 1_000_000));
+        if (!allCompleted.get()) {
+            replaceTechnique();
+        }
+        out.println(DONE + " " + suite.getResultFile());
+    }
+
+    /**
+     * Disposes the technique and creates a new one. Must hold the job lock.
+     */
+    private void replaceTechnique() {
+        technique.teardown();
+        technique.dispose();
+        technique = techniqueFactory.get();
+        Logger.debugLog(LOG_TAG, "Replaced technique " + technique.getId());
+    }
+
+    private void locate(String argument, PrintWriter out) throws IOException {
+        int separator = argument.indexOf('\t');
+        if (separator < 0) {
+            out.println(ERROR + " Expected LOCATE <source folder>TAB<query>");
+            return;
+        }
+        File sourceFolder = new File(argument.substring(0, separator));
+        if (!sourceFolder.isDirectory()) {
+            out.println(ERROR + " " + sourceFolder + " is not a directory");
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        technique.prepareCodebase(sourceFolder);
+        IndexBuildStats buildStats = technique.getLastBuildStats();
+        if (buildStats != null) {
+            SuiteMetrics.get().recordIndexBuild(buildStats.getDocuments(), buildStats.getBuildMillis());
+        }
+        List<SearchResult> results;
+        try {
+            Set<SearchResult> hits = technique.locate(argument.substring(separator + 1));
+            results = new ArrayList<>(hits);
+        } finally {
+            technique.teardown();
+        }
+        Collections.sort(results);
+
+        for (SearchResult result : results) {
+            out.println(String.format("%s %.6f %s", HIT, result.getScore(), result.getClassName()));
+        }
+        out.println(String.format("%s %d hits in %d ms", DONE, results.size(),
+                (System.nanoTime() - startTime) / 1_000_000));
+    }
+
+    private static String getStatus() {
+        SuiteMetrics metrics = SuiteMetrics.get();
+        return String.format("benchmark=%s completed=%d inFlight=%d avgLocateMillis=%.3f heapUsedBytes=%d",
+                metrics.getCurrentBenchmark().isEmpty() ? "-" : metrics.getCurrentBenchmark(),
+                metrics.getQueriesCompleted(), metrics.getInFlightQueries(), metrics.getAverageLocateMillis(),
+                metrics.getHeapUsedBytes());
+    }
+
+    private void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Logger.debugLog(LOG_TAG, "Could not close server socket");
+        }
+    }
+}
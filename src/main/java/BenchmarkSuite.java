@@ -3,21 +3,43 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public class BenchmarkSuite {
     private static final String RESULTS_FILE_NAME_PREFIX = "benchmark_results_";
     private static final String RESULTS_FILE_EXTENSION = ".csv";
+    static final String SUMMARY_ROW_PREFIX = "summary:";
+    // Added to the time budgets of a query before its worker is considered hung
+    private static final long DEFAULT_WORKER_TASK_TIMEOUT_MARGIN_MILLIS = 60_000;
 
     private File rootFolder;
     private OutputStreamWriter resultWriter;
-    private FeatureLocationTechnique featureLocationTechnique;
+    // Replaced by a copy when a query abandons it, see Benchmark#getTechnique()
+    private volatile FeatureLocationTechnique featureLocationTechnique;
+    private long prepareTimeout = -1;
+    private long queryTimeout = -1;
+    private int workers = 1;
+    private List<String> workerJvmArguments = Collections.emptyList();
+    private long workerTaskTimeout = -1;
+    private File metricsFile;
+    private long metricsInterval = -1;
+    private boolean retainResults = true;
+    private int repetitions = 1;
+    private ResultAggregator aggregator;
+    private File resultFile;
+    private BiConsumer<String, QueryResult> resultListener;
+    private volatile boolean cancelled = false;
+    private volatile Benchmark runningBenchmark;
+    private volatile SuiteCoordinator coordinator;
 
     public BenchmarkSuite(FeatureLocationTechnique technique, String benchmarkSuiteFolder) {
         this.featureLocationTechnique = technique;
@@ -27,12 +49,188 @@ public class BenchmarkSuite {
         }
     }
 
+    /**
+     * Limits the time the technique may spend preparing a codebase. Queries exceeding it are
+     * recorded with outcome PREPARE_TIMEOUT.
+     *
+     * @param prepareTimeout timeout in milliseconds, negative for no limit (default)
+     */
+    public BenchmarkSuite setPrepareTimeout(long prepareTimeout) {
+        this.prepareTimeout = prepareTimeout;
+        return this;
+    }
+
+    /**
+     * Limits the time the technique may spend locating a single query. Queries exceeding it are
+     * recorded with outcome QUERY_TIMEOUT.
+     *
+     * @param queryTimeout timeout in milliseconds, negative for no limit (default)
+     */
+    public BenchmarkSuite setQueryTimeout(long queryTimeout) {
+        this.queryTimeout = queryTimeout;
+        return this;
+    }
+
+    /**
+     * Distributes the queries to several worker JVMs. The technique must be serializable, each
+     * worker gets its own copy.
+     *
+     * @param workers number of worker processes, 1 runs all queries in this JVM (default)
+     */
+    public BenchmarkSuite setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Time after which a worker that is still running the same query is considered hung. It is
+     * killed and replaced, the query is retried like one that crashed its worker.
+     *
+     * @param workerTaskTimeout timeout in milliseconds, negative for the default: the prepare and
+     *                          query timeout plus a minute if both are set, otherwise no limit
+     */
+    public BenchmarkSuite setWorkerTaskTimeout(long workerTaskTimeout) {
+        this.workerTaskTimeout = workerTaskTimeout;
+        return this;
+    }
+
+    /**
+     * @param workerJvmArguments additional arguments for the worker JVMs, e.g. "-Xmx8g"
+     */
+    public BenchmarkSuite setWorkerJvmArguments(List<String> workerJvmArguments) {
+        this.workerJvmArguments = workerJvmArguments;
+        return this;
+    }
+
+    /**
+     * Periodically appends the live metrics (see {@link SuiteMetricsMBean}) to a CSV file while the
+     * suite runs. The metrics are also available via JMX regardless of this setting.
+     *
+     * @param metricsFile     file to append to
+     * @param metricsInterval interval in milliseconds, negative to disable (default)
+     */
+    public BenchmarkSuite setMetricsFile(File metricsFile, long metricsInterval) {
+        this.metricsFile = metricsFile;
+        this.metricsInterval = metricsInterval;
+        return this;
+    }
+
+    /**
+     * Whether {@link #runBenchmarks()} returns every query result. Disable for suites with very many
+     * queries, the results are then only written to the CSV file and summarized in
+     * {@link #getResultAggregator()}.
+     *
+     * @param retainResults true to keep all results in memory (default)
+     */
+    public BenchmarkSuite setRetainResults(boolean retainResults) {
+        this.retainResults = retainResults;
+        return this;
+    }
+
+    /**
+     * Runs all benchmarks several times, all results are written to the same CSV file. The
+     * {@link PerformanceGate} compares queries that were run several times by their median.
+     *
+     * @param repetitions number of runs of every benchmark, at least 1 (default 1)
+     */
+    public BenchmarkSuite setRepetitions(int repetitions) {
+        if (repetitions < 1) {
+            throw new IllegalArgumentException("repetitions must be at least 1, was " + repetitions);
+        }
+        this.repetitions = repetitions;
+        return this;
+    }
+
+    /**
+     * @param resultListener called with the benchmark name and the result as soon as each result is
+     *                       available, in the order they are written to the CSV file
+     */
+    public BenchmarkSuite setResultListener(BiConsumer<String, QueryResult> resultListener) {
+        this.resultListener = resultListener;
+        return this;
+    }
+
+    /**
+     * @return statistics of the results of the last run, or null if the suite was not run yet
+     */
+    ResultAggregator getResultAggregator() {
+        return aggregator;
+    }
+
+    /**
+     * @return the technique the suite runs, a copy if a query abandoned the original one, or null
+     * if that could not be replaced
+     */
+    public FeatureLocationTechnique getTechnique() {
+        return featureLocationTechnique;
+    }
+
+    /**
+     * @return the CSV file of the last run, or null if the suite was not run yet
+     */
+    public File getResultFile() {
+        return resultFile;
+    }
+
+    /**
+     * Stops the suite from another thread: the running query is cancelled and its result dropped,
+     * no further queries are run. The summary rows only cover the queries run before.
+     */
+    public void cancel() {
+        cancelled = true;
+        Benchmark benchmark = runningBenchmark;
+        if (benchmark != null) {
+            benchmark.cancel();
+        }
+        SuiteCoordinator suiteCoordinator = coordinator;
+        if (suiteCoordinator != null) {
+            suiteCoordinator.cancel();
+        }
+        FeatureLocationTechnique technique = featureLocationTechnique;
+        if (technique != null) {
+            technique.cancel();
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel()} was called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs all benchmarks and writes each result and, at the end, summary rows per benchmark and
+     * for the whole suite to the CSV file.
+     *
+     * @return all results, or an empty list if results are not retained
+     */
     public List<QueryResult> runBenchmarks() {
+        if (featureLocationTechnique == null) {
+            throw new IllegalStateException("The technique was abandoned by a previous run");
+        }
         Logger.debugLog("Running benchmark with " + featureLocationTechnique.getId());
+        SuiteMetrics.register();
+        SuiteMetrics.get().reset();
+        startMetricsDump();
+        try {
+            return runAllBenchmarks();
+        } finally {
+            SuiteMetrics metrics = SuiteMetrics.get();
+            metrics.stopDump();
+            metrics.setCurrentBenchmark("");
+            if (metrics.getReaderPoolHits() + metrics.getReaderPoolMisses() > 0) {
+                Logger.debugLog(() -> String.format("Index reader pool: %d hits, %d misses",
+                        metrics.getReaderPoolHits(), metrics.getReaderPoolMisses()));
+            }
+        }
+    }
+
+    private List<QueryResult> runAllBenchmarks() {
         File[] benchmarkDirs = rootFolder.listFiles(File::isDirectory);
         if (benchmarkDirs == null) return null;
 
-        Logger.debugLog(String.format("Found %d benchmark folders: %s", benchmarkDirs.length, Arrays.toString(benchmarkDirs)));
+        Logger.debugLog(() -> String.format("Found %d benchmark folders: %s", benchmarkDirs.length, Arrays.toString(benchmarkDirs)));
 
         try {
             openResultWriter();
@@ -47,28 +245,22 @@ public class BenchmarkSuite {
             return fileName1.compareTo(fileName2);
         });
 
+        aggregator = new ResultAggregator();
         List<QueryResult> suiteResults = new ArrayList<>();
-        for (File benchmarkDir : benchmarkDirs) {
-            Logger.verboseLog("-------------------------------------------------");
-            Logger.verboseLog(String.format("Running benchmark %s", benchmarkDir));
-            Benchmark benchmark = new Benchmark(featureLocationTechnique, benchmarkDir);
-            List<QueryResult> results = benchmark.run();
-            suiteResults.addAll(results);
-
-            for (QueryResult result : results) {
-                try {
-                    resultWriter.append(String.format("%s,%s\n",
-                            benchmarkDir.getName().replaceAll(",",""),
-                            result.toString()));
-                    resultWriter.flush();
-                } catch (IOException e) {
-                    Logger.debugLog("Could not write to result file");
-                    e.printStackTrace();
+        if (workers > 1) {
+            runDistributed(benchmarkDirs, suiteResults);
+        } else {
+            for (int repetition = 1; repetition <= repetitions; repetition++) {
+                runRepetition(benchmarkDirs, repetition, suiteResults);
+                if (cancelled || featureLocationTechnique == null) {
+                    break;
                 }
             }
+            runningBenchmark = null;
         }
 
         try {
+            writeSummary();
             flushAndCloseResultWriter();
         } catch (IOException e) {
             Logger.debugLog("Could not write/close result file");
@@ -78,18 +270,150 @@ public class BenchmarkSuite {
         return suiteResults;
     }
 
+    private void runRepetition(File[] benchmarkDirs, int repetition, List<QueryResult> suiteResults) {
+        for (File benchmarkDir : benchmarkDirs) {
+            Logger.verboseLog("-------------------------------------------------");
+            if (repetitions > 1) {
+                Logger.verboseLog(() -> String.format("Running benchmark %s, repetition %d of %d",
+                        benchmarkDir, repetition, repetitions));
+            } else {
+                Logger.verboseLog(() -> String.format("Running benchmark %s", benchmarkDir));
+            }
+            Benchmark benchmark = new Benchmark(featureLocationTechnique, benchmarkDir);
+            // Published before checking the flag, so a concurrent cancel() reaches either
+            runningBenchmark = benchmark;
+            if (cancelled) {
+                return;
+            }
+            SuiteMetrics.get().setCurrentBenchmark(benchmark.getName());
+            benchmark.setTimeouts(prepareTimeout, queryTimeout);
+            benchmark.run(result -> handleResult(benchmark, result, suiteResults));
+            featureLocationTechnique = benchmark.getTechnique();
+            if (featureLocationTechnique == null) {
+                Logger.debugLog("Skipping the remaining benchmarks, the technique was abandoned");
+                return;
+            }
+        }
+    }
+
+    private void runDistributed(File[] benchmarkDirs, List<QueryResult> suiteResults) {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (int repetition = 1; repetition <= repetitions; repetition++) {
+            for (File benchmarkDir : benchmarkDirs) {
+                benchmarks.add(new Benchmark(featureLocationTechnique, benchmarkDir));
+            }
+        }
+
+        long taskTimeout = workerTaskTimeout;
+        if (taskTimeout < 0 && prepareTimeout >= 0 && queryTimeout >= 0) {
+            taskTimeout = prepareTimeout + queryTimeout + DEFAULT_WORKER_TASK_TIMEOUT_MARGIN_MILLIS;
+        }
+        coordinator = new SuiteCoordinator(featureLocationTechnique, workers,
+                workerJvmArguments, prepareTimeout, queryTimeout, taskTimeout);
+        if (cancelled) {
+            return;
+        }
+        try {
+            coordinator.run(benchmarks, (benchmark, result) -> handleResult(benchmark, result, suiteResults));
+        } catch (IOException e) {
+            Logger.debugLog("Distributed run failed");
+            e.printStackTrace();
+        }
+    }
+
+    private void startMetricsDump() {
+        if (metricsFile == null || metricsInterval < 0) {
+            return;
+        }
+        try {
+            SuiteMetrics.get().startDump(metricsFile, metricsInterval);
+        } catch (IOException e) {
+            Logger.debugLog("Could not open metrics file");
+            e.printStackTrace();
+        }
+    }
+
+    private void handleResult(Benchmark benchmark, QueryResult result, List<QueryResult> suiteResults) {
+        if (retainResults) {
+            suiteResults.add(result);
+        }
+        aggregator.add(benchmark.getName(), result);
+        SuiteMetrics metrics = SuiteMetrics.get();
+        metrics.setCurrentBenchmark(benchmark.getName());
+        metrics.recordResult(result);
+        writeResult(benchmark, result);
+        if (resultListener != null) {
+            resultListener.accept(benchmark.getName(), result);
+        }
+    }
+
+    private void writeResult(Benchmark benchmark, QueryResult result) {
+        try {
+            resultWriter.append(String.format("%s,%s\n",
+                    benchmark.getName().replaceAll(",",""),
+                    result.toString()));
+            resultWriter.flush();
+        } catch (IOException e) {
+            Logger.debugLog("Could not write to result file");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes one row per statistic for each benchmark and for the whole suite (named
+     * {@value ResultAggregator#SUITE_NAME}). The rows have the same columns as the results: the
+     * queryId column names the statistic, e.g. "summary:mean", the metric columns hold its values.
+     */
+    private void writeSummary() throws IOException {
+        List<String> benchmarkNames = new ArrayList<>(aggregator.getBenchmarkNames());
+        benchmarkNames.add(ResultAggregator.SUITE_NAME);
+        List<Field> fields = getResultFields();
+
+        for (String benchmarkName : benchmarkNames) {
+            for (RunningStatistics.Statistic statistic : RunningStatistics.Statistic.values()) {
+                StringBuilder row = new StringBuilder(benchmarkName.replaceAll(",", ""));
+                for (Field field : fields) {
+                    row.append(',');
+                    ResultAggregator.Metric metric = ResultAggregator.Metric.forFieldName(field.getName());
+                    if (field.getName().equals("queryId")) {
+                        row.append(SUMMARY_ROW_PREFIX).append(statistic.name().toLowerCase());
+                    } else if (metric != null) {
+                        RunningStatistics statistics = aggregator.getStatistics(benchmarkName, metric);
+                        if (statistics != null && statistics.getCount() > 0) {
+                            row.append(statistic == RunningStatistics.Statistic.COUNT
+                                    ? String.valueOf(statistics.getCount())
+                                    : String.format("%.5f", statistics.get(statistic)));
+                        }
+                    }
+                }
+                resultWriter.write(row.append('\n').toString());
+            }
+        }
+        resultWriter.flush();
+    }
+
+    /**
+     * @return the fields of {@link QueryResult} that are written as columns, in declaration order
+     */
+    private static List<Field> getResultFields() {
+        return Arrays.stream(QueryResult.class.getDeclaredFields())
+                .filter(field -> !Modifier.isStatic(field.getModifiers()))
+                .collect(Collectors.toList());
+    }
+
     private void openResultWriter() throws IOException {
         String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
         File outputFile = new File(rootFolder.getPath() + File.separator +
                 RESULTS_FILE_NAME_PREFIX + featureLocationTechnique.getId() + "_" + timeStamp +
                 RESULTS_FILE_EXTENSION);
         boolean existed = !outputFile.createNewFile();
+        resultFile = outputFile;
 
         resultWriter = new OutputStreamWriter(
                 new FileOutputStream(outputFile), StandardCharsets.UTF_8);
 
         // Write header
-        List<String> fieldNames = Arrays.stream(QueryResult.class.getDeclaredFields())
+        List<String> fieldNames = getResultFields().stream()
                 .map(Field::getName).collect(Collectors.toList());
         Field[] fields = QueryResult.class.getFields();
         resultWriter.write("BenchmarkName," + String.join(",", fieldNames) + "\n");
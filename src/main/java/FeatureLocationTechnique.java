@@ -10,4 +10,29 @@ public interface FeatureLocationTechnique {
     Set<SearchResult> locate(String query);
 
     void teardown();
+
+    /**
+     * @return statistics of the index built by the last {@link #prepareCodebase(File)} call, or null
+     * if it reused an existing index or the technique does not report them (default)
+     */
+    default IndexBuildStats getLastBuildStats() {
+        return null;
+    }
+
+    /**
+     * Signals that the currently running {@link #prepareCodebase(File)} or {@link #locate(String)}
+     * exceeded its time budget. Called from a different thread than the one doing the work;
+     * implementations should stop as soon as possible. The suite waits a few seconds for the
+     * cancelled call to return before calling {@link #teardown()}; implementations that ignore
+     * this (the default does nothing) are abandoned and replaced by a serialized copy.
+     */
+    default void cancel() {
+    }
+
+    /**
+     * Releases everything the technique keeps between queries, e.g. open indexes. Called once the
+     * technique is not used anymore; the default does nothing.
+     */
+    default void dispose() {
+    }
 }
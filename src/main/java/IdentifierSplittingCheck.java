@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+/**
+ * Checks {@link IdentifierSplittingReader} against the regular expressions it replaced, on random
+ * strings of identifier characters, digits, whitespace, punctuation and non-ASCII characters. Each
+ * string is split with {@link SourceAnalysis#preprocessText(String)} and with readers whose buffer
+ * and read sizes are small and random, so words and splits cross buffer boundaries. The process
+ * exits with code 1 if any string is split differently.
+ * <p>
+ * Usage: IdentifierSplittingCheck [number of strings, default 200000] [seed, default 1]
+ */
+public class IdentifierSplittingCheck {
+    private static final String ALPHABET = "aZbYXWcDe09_ \n\t\r.;(<>\"'\u00e4\u00e9\u20ac\uD83D\uDE00";
+    private static final int MAX_LENGTH = 40;
+    private static final int MAX_BUFFER_SIZE = 8;
+    private static final int MAX_LOGGED_MISMATCHES = 5;
+
+    public static void main(String[] args) throws IOException {
+        int strings = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 1);
+
+        int mismatches = 0;
+        for (int i = 0; i < strings; i++) {
+            String text = randomText(random);
+            String expected = splitWithRegularExpressions(text);
+            String preprocessed = SourceAnalysis.preprocessText(text);
+            String streamed = splitWithReader(text, random);
+            if (!expected.equals(preprocessed) || !expected.equals(streamed)) {
+                if (++mismatches <= MAX_LOGGED_MISMATCHES) {
+                    System.out.println(String.format("Mismatch for \"%s\": expected \"%s\", preprocessText \"%s\", reader \"%s\"",
+                            escape(text), escape(expected), escape(preprocessed), escape(streamed)));
+                }
+            }
+        }
+
+        System.out.println(String.format("%d of %d strings split differently", mismatches, strings));
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The identifier splitting as done before {@link IdentifierSplittingReader}.
+     */
+    private static String splitWithRegularExpressions(String text) {
+        String split = text.replaceAll("\\W", " ");
+        split = split.replaceAll(String.format("%s|%s|%s",
+                "(?<=[A-Z])(?=[A-Z][a-z])",
+                "(?<=[^A-Z])(?=[A-Z])",
+                "(?<=[A-Za-z])(?=[^A-Za-z])"), " ");
+        return split.replaceAll("\\s+", " ");
+    }
+
+    private static String splitWithReader(String text, Random random) throws IOException {
+        StringBuilder split = new StringBuilder();
+        try (Reader reader = new IdentifierSplittingReader(new StringReader(text), 1 + random.nextInt(MAX_BUFFER_SIZE))) {
+            char[] buffer = new char[MAX_BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer, 0, 1 + random.nextInt(MAX_BUFFER_SIZE))) >= 0) {
+                split.append(buffer, 0, read);
+            }
+        }
+        return split.toString();
+    }
+
+    private static String randomText(Random random) {
+        int length = random.nextInt(MAX_LENGTH);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+}
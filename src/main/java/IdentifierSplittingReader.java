@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming version of the identifier splitting of {@link SourceAnalysis#preprocessText(String)}:
+ * replaces all non-word characters with whitespace, splits camel case identifiers and letters
+ * from following digits and collapses whitespace. Only a fixed size buffer is held in memory,
+ * independent of the length of the input.
+ */
+class IdentifierSplittingReader extends Reader {
+    // Increment whenever the output changes, cached token streams of older versions are then ignored
+    static final int VERSION = 1;
+
+    private static final int END = -1;
+    private static final int NOT_STARTED = -2;
+
+    private final Reader in;
+    private final char[] inBuffer;
+    private int inPosition = 0;
+    private int inLimit = 0;
+
+    private int previous = END;
+    private int current = NOT_STARTED;
+    private boolean lastWasSpace = false;
+    // Processing one input character produces at most two output characters
+    private final char[] pending = new char[2];
+    private int pendingStart = 0;
+    private int pendingEnd = 0;
+
+    IdentifierSplittingReader(Reader in, int bufferSize) {
+        this.in = in;
+        this.inBuffer = new char[bufferSize];
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        int read = 0;
+        while (read < length) {
+            if (pendingStart < pendingEnd) {
+                buffer[offset + read++] = pending[pendingStart++];
+                continue;
+            }
+
+            if (current == NOT_STARTED) {
+                current = readMapped();
+            }
+            if (current == END) {
+                break;
+            }
+
+            int next = readMapped();
+            pendingStart = 0;
+            pendingEnd = 0;
+            if (previous != END && isSplit(previous, current, next)) {
+                emit(' ');
+            }
+            emit((char) current);
+            previous = current;
+            current = next;
+        }
+
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void emit(char c) {
+        if (c == ' ') {
+            if (lastWasSpace) {
+                return;
+            }
+            lastWasSpace = true;
+        } else {
+            lastWasSpace = false;
+        }
+        pending[pendingEnd++] = c;
+    }
+
+    /**
+     * @return the next input character with non-word characters replaced by a space, or END
+     */
+    private int readMapped() throws IOException {
+        if (inPosition == inLimit) {
+            int read;
+            do {
+                read = in.read(inBuffer, 0, inBuffer.length);
+            } while (read == 0);
+            if (read < 0) {
+                return END;
+            }
+            inPosition = 0;
+            inLimit = read;
+        }
+
+        char c = inBuffer[inPosition++];
+        return isWordCharacter(c) ? c : ' ';
+    }
+
+    /**
+     * Whether a space is inserted between current and its predecessor: before the last upper case
+     * letter of an acronym followed by a lower case letter (XMLParser), before an upper case letter
+     * following anything else (camelCase) and after a letter followed by a non-letter (utf8).
+     */
+    private static boolean isSplit(int previous, int current, int next) {
+        return (isUpperCase(previous) && isUpperCase(current) && isLowerCase(next))
+                || (!isUpperCase(previous) && isUpperCase(current))
+                || (isLetter(previous) && !isLetter(current));
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isLetter(int c) {
+        return isUpperCase(c) || isLowerCase(c);
+    }
+
+    private static boolean isUpperCase(int c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isLowerCase(int c) {
+        return c >= 'a' && c <= 'z';
+    }
+}
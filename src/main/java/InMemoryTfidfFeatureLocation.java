@@ -0,0 +1,624 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * TF-IDF feature location without Lucene's per-query overhead. The codebase is indexed in memory
+ * into primitive arrays: an interned vocabulary, per term postings of document ids and
+ * precomputed tf * length norm weights, scored with a primitive top-k heap.
+ * <p>
+ * Tokenization, stop words and the scoring formula are the same as for {@link TfidfFeatureLocation}
+ * with Lucene's {@link DefaultSimilarity}, so both return the same results for the same
+ * configuration. The index of the most recently prepared codebase stays in memory after
+ * {@link #teardown()}, so preparing the same codebase again is free; {@link #dispose()} releases it.
+ * {@code ScalingRun <folder> <class counts> COMPARE} checks that both techniques agree.
+ * <p>
+ * Unlike Lucene's query parser, every query term is an optional clause: the operators AND, OR and
+ * NOT are not interpreted but analyzed like other words (they are stop words of the default list).
+ * Results therefore only match {@link TfidfFeatureLocation} for queries without upper case
+ * operators.
+ */
+public class InMemoryTfidfFeatureLocation implements FeatureLocationTechnique, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final String CONTENTS_FIELD = "contents";
+
+    private TfidfConfiguration config;
+    private transient DefaultSimilarity similarity;
+    private transient Analyzer analyzer;
+    private transient File indexedCodeBase;
+    private transient Index index;
+    private transient volatile boolean cancelled;
+    private transient TokenCache tokenCache;
+    private transient IndexBuildStats lastBuildStats;
+
+    InMemoryTfidfFeatureLocation(TfidfConfiguration config) {
+        this.config = config;
+        init();
+    }
+
+    private void init() {
+        this.similarity = new DefaultSimilarity();
+        this.tokenCache = config.getTokenCacheDir() != null ? new TokenCache(new File(config.getTokenCacheDir())) : null;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+
+    @Override
+    public String getId() {
+        return "TFIDF_MEMORY";
+    }
+
+    @Override
+    public void prepareCodebase(File codeBase) throws IOException {
+        this.cancelled = false;
+        this.lastBuildStats = null;
+        File canonicalCodeBase = codeBase.getCanonicalFile();
+        if (index != null && canonicalCodeBase.equals(indexedCodeBase)) {
+            return;
+        }
+
+        if (analyzer == null) {
+            analyzer = SourceAnalysis.getAnalyzer(config.getStopWordFile());
+        }
+
+        // Drop the old index first, so both are never in memory at the same time
+        index = null;
+        indexedCodeBase = null;
+
+        long startTime = System.nanoTime();
+        Collection<File> files = FileUtils.listFiles(codeBase, new String[]{"java"}, true);
+        Index.Builder builder = new Index.Builder(files.size());
+        for (File file : files) {
+            if (cancelled) {
+                throw new InterruptedIOException("Indexing of " + codeBase + " was cancelled");
+            }
+            try (Reader contents = SourceAnalysis.openPreprocessedReader(file, config.getIngestBufferSize(), tokenCache)) {
+                if (contents == null) {
+                    Logger.debugLog(getId(), String.format("Could not find charset for file %s", file));
+                    continue;
+                }
+
+                builder.startDocument(file.getCanonicalFile());
+                try (TokenStream tokenStream = analyzer.tokenStream(CONTENTS_FIELD, contents)) {
+                    CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+                    tokenStream.reset();
+                    while (tokenStream.incrementToken()) {
+                        builder.addToken(term.buffer(), term.length());
+                    }
+                    tokenStream.end();
+                }
+                builder.endDocument(similarity);
+            }
+        }
+
+        long indexedTime = System.nanoTime();
+        index = builder.build(similarity);
+        indexedCodeBase = canonicalCodeBase;
+        lastBuildStats = new IndexBuildStats(index.numDocs,
+                (indexedTime - startTime) / 1_000_000, (System.nanoTime() - indexedTime) / 1_000_000,
+                1, index.estimatePostingsBytes());
+        Logger.verboseLog(getId(), () -> String.format("Indexed %d documents with %d terms",
+                index.numDocs, index.terms.size()));
+        if (tokenCache != null) {
+            Logger.verboseLog(getId(), tokenCache::toString);
+        }
+    }
+
+    @Override
+    public Set<SearchResult> locate(String feature) {
+        String queryString = SourceAnalysis.preprocessText(feature);
+        Logger.verboseLog(getId(), () -> String.format("Searching for:\n%s\n", queryString));
+
+        Set<SearchResult> resultList = new HashSet<>();
+        if (index == null) {
+            Logger.debugLog(getId(), "No codebase prepared");
+            return resultList;
+        }
+        try {
+            Query query = parseQuery(queryString);
+            if (query.clauses == 0) {
+                return resultList;
+            }
+
+            Index.Hits hits = index.search(query, config.getMaxResults(), similarity, this);
+            for (int i = 0; i < hits.size && !cancelled; i++) {
+                float score = hits.scores[i];
+                if (config.getScoreCutoff() >= 0 && score < config.getScoreCutoff()) {
+                    continue;
+                }
+                String className = index.getClassName(hits.docs[i]);
+                if (className != null) {
+                    resultList.add(new SearchResult(className, score));
+                }
+            }
+        } catch (IOException e) {
+            Logger.debugLog(getId(), "Could not analyze query \"" + queryString + "\"");
+            e.printStackTrace();
+        }
+
+        return resultList;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void teardown() {
+        // The index is kept for the next query on the same codebase
+    }
+
+    @Override
+    public void dispose() {
+        index = null;
+        indexedCodeBase = null;
+    }
+
+    /**
+     * The in-memory index has a single segment, its size is the estimated heap size of the postings.
+     */
+    @Override
+    public IndexBuildStats getLastBuildStats() {
+        return lastBuildStats;
+    }
+
+    /**
+     * Analyzes the query into distinct term ids and their number of occurrences. Terms that are not
+     * in the index still count as clauses for the query norm and coordination factor, as they do for
+     * Lucene's BooleanQuery.
+     */
+    private Query parseQuery(String queryString) throws IOException {
+        Query query = new Query(index.queryTermPositions);
+        try (TokenStream tokenStream = analyzer.tokenStream(CONTENTS_FIELD, queryString)) {
+            CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            int unknownTerms = 0;
+            Set<String> unknownTermSet = new HashSet<>();
+            while (tokenStream.incrementToken()) {
+                int termId = index.terms.lookup(term.buffer(), term.length());
+                if (termId < 0) {
+                    if (!config.isRemoveDuplicateQueryTerms() || unknownTermSet.add(term.toString())) {
+                        unknownTerms++;
+                    }
+                    continue;
+                }
+                query.add(termId, config.isRemoveDuplicateQueryTerms());
+            }
+            tokenStream.end();
+
+            query.clauses += unknownTerms;
+            query.sumOfSquaredWeights += unknownTerms * square(similarity.idf(0, index.numDocs));
+        } finally {
+            query.complete();
+        }
+
+        for (int i = 0; i < query.size; i++) {
+            query.sumOfSquaredWeights += query.counts[i] * square(index.idf[query.termIds[i]]);
+        }
+        return query;
+    }
+
+    private static float square(float value) {
+        return value * value;
+    }
+
+    /**
+     * Distinct query terms with their number of occurrences.
+     */
+    private static class Query {
+        private int[] termIds = new int[8];
+        private int[] counts = new int[8];
+        private int size = 0;
+        private int clauses = 0;
+        private float sumOfSquaredWeights = 0;
+        // Position of each term id in termIds or -1, shared by all queries on the index
+        private final int[] positions;
+
+        private Query(int[] positions) {
+            this.positions = positions;
+        }
+
+        private void add(int termId, boolean distinct) {
+            int position = positions[termId];
+            if (position >= 0) {
+                if (!distinct) {
+                    counts[position]++;
+                    clauses++;
+                }
+                return;
+            }
+            if (size == termIds.length) {
+                termIds = Arrays.copyOf(termIds, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            positions[termId] = size;
+            termIds[size] = termId;
+            counts[size] = 1;
+            size++;
+            clauses++;
+        }
+
+        /**
+         * Resets the shared positions once all terms were added.
+         */
+        private void complete() {
+            for (int i = 0; i < size; i++) {
+                positions[termIds[i]] = -1;
+            }
+        }
+    }
+
+    private static class Index {
+        private final TermDictionary terms;
+        private final int numDocs;
+        private final File[] files;
+        private final String[] classNames;
+        private final boolean[] classNameResolved;
+        private final float[] idf;
+        // Postings per term id: matching documents and tf(freq) * norm(doc) for each of them
+        private final int[][] postingDocs;
+        private final float[][] postingWeights;
+
+        // Reused between queries, the technique is not used concurrently
+        private final int[] queryTermPositions;
+        private final float[] scores;
+        private final int[] overlaps;
+        private final int[] touchedDocs;
+
+        private Index(TermDictionary terms, int numDocs, File[] files, int[][] postingDocs, float[][] postingWeights,
+                      DefaultSimilarity similarity) {
+            this.terms = terms;
+            this.numDocs = numDocs;
+            this.files = files;
+            this.classNames = new String[numDocs];
+            this.classNameResolved = new boolean[numDocs];
+            this.postingDocs = postingDocs;
+            this.postingWeights = postingWeights;
+            this.idf = new float[terms.size()];
+            for (int termId = 0; termId < idf.length; termId++) {
+                idf[termId] = similarity.idf(postingDocs[termId].length, numDocs);
+            }
+            this.queryTermPositions = new int[terms.size()];
+            Arrays.fill(queryTermPositions, -1);
+            this.scores = new float[numDocs];
+            this.overlaps = new int[numDocs];
+            this.touchedDocs = new int[numDocs];
+        }
+
+        /**
+         * Scores all documents containing at least one query term like Lucene's TF-IDF scoring of a
+         * BooleanQuery: coord * sum(tf * idf^2 * queryNorm * norm).
+         *
+         * @param maxResults maximum number of returned hits, non-positive for all
+         */
+        private Hits search(Query query, int maxResults, DefaultSimilarity similarity,
+                            InMemoryTfidfFeatureLocation technique) {
+            float queryNorm = similarity.queryNorm(query.sumOfSquaredWeights);
+            int numTouched = 0;
+            for (int i = 0; i < query.size && !technique.cancelled; i++) {
+                int termId = query.termIds[i];
+                int count = query.counts[i];
+                float queryWeight = count * idf[termId] * idf[termId] * queryNorm;
+                int[] docs = postingDocs[termId];
+                float[] weights = postingWeights[termId];
+                for (int p = 0; p < docs.length; p++) {
+                    int doc = docs[p];
+                    if (overlaps[doc] == 0) {
+                        touchedDocs[numTouched++] = doc;
+                    }
+                    overlaps[doc] += count;
+                    scores[doc] += queryWeight * weights[p];
+                }
+            }
+
+            Hits hits = new Hits(maxResults > 0 ? Math.min(maxResults, numTouched) : numTouched);
+            for (int i = 0; i < numTouched; i++) {
+                int doc = touchedDocs[i];
+                hits.offer(doc, scores[doc] * similarity.coord(overlaps[doc], query.clauses));
+                scores[doc] = 0;
+                overlaps[doc] = 0;
+            }
+            return hits;
+        }
+
+        /**
+         * @return heap size of the postings, ignoring array headers
+         */
+        private long estimatePostingsBytes() {
+            long bytes = 0;
+            for (int[] docs : postingDocs) {
+                bytes += (long) docs.length * (Integer.BYTES + Float.BYTES);
+            }
+            return bytes;
+        }
+
+        private String getClassName(int doc) {
+            if (!classNameResolved[doc]) {
+                classNames[doc] = SourceAnalysis.getClassName(files[doc]);
+                classNameResolved[doc] = true;
+            }
+            return classNames[doc];
+        }
+
+        /**
+         * Hits with the highest scores, kept as a min-heap on the score while collecting.
+         */
+        private static class Hits {
+            private final int[] docs;
+            private final float[] scores;
+            private int size = 0;
+
+            private Hits(int capacity) {
+                this.docs = new int[capacity];
+                this.scores = new float[capacity];
+            }
+
+            private void offer(int doc, float score) {
+                if (size < docs.length) {
+                    docs[size] = doc;
+                    scores[size] = score;
+                    siftUp(size++);
+                } else if (size > 0 && score > scores[0]) {
+                    docs[0] = doc;
+                    scores[0] = score;
+                    siftDown(0);
+                }
+            }
+
+            private void siftUp(int position) {
+                while (position > 0) {
+                    int parent = (position - 1) >>> 1;
+                    if (scores[parent] <= scores[position]) {
+                        return;
+                    }
+                    swap(parent, position);
+                    position = parent;
+                }
+            }
+
+            private void siftDown(int position) {
+                while (true) {
+                    int smallest = position;
+                    int left = 2 * position + 1;
+                    int right = left + 1;
+                    if (left < size && scores[left] < scores[smallest]) {
+                        smallest = left;
+                    }
+                    if (right < size && scores[right] < scores[smallest]) {
+                        smallest = right;
+                    }
+                    if (smallest == position) {
+                        return;
+                    }
+                    swap(smallest, position);
+                    position = smallest;
+                }
+            }
+
+            private void swap(int i, int j) {
+                int doc = docs[i];
+                docs[i] = docs[j];
+                docs[j] = doc;
+                float score = scores[i];
+                scores[i] = scores[j];
+                scores[j] = score;
+            }
+        }
+
+        private static class Builder {
+            private final TermDictionary terms = new TermDictionary();
+            private File[] files;
+            private float[] norms;
+            private int numDocs = 0;
+
+            private int[][] postingDocs = new int[1024][];
+            private int[][] postingFreqs = new int[1024][];
+            private int[] postingSizes = new int[1024];
+
+            // Term frequencies of the current document
+            private int[] termFreqs = new int[1024];
+            private int[] documentTerms = new int[256];
+            private int numDocumentTerms = 0;
+            private int documentLength = 0;
+
+            private Builder(int expectedDocs) {
+                this.files = new File[Math.max(expectedDocs, 1)];
+                this.norms = new float[files.length];
+            }
+
+            private void startDocument(File file) {
+                if (numDocs == files.length) {
+                    files = Arrays.copyOf(files, numDocs * 2);
+                    norms = Arrays.copyOf(norms, numDocs * 2);
+                }
+                files[numDocs] = file;
+                numDocumentTerms = 0;
+                documentLength = 0;
+            }
+
+            private void addToken(char[] buffer, int length) {
+                int termId = terms.intern(buffer, length);
+                if (termId >= termFreqs.length) {
+                    termFreqs = Arrays.copyOf(termFreqs, termFreqs.length * 2);
+                }
+                if (termFreqs[termId]++ == 0) {
+                    if (numDocumentTerms == documentTerms.length) {
+                        documentTerms = Arrays.copyOf(documentTerms, numDocumentTerms * 2);
+                    }
+                    documentTerms[numDocumentTerms++] = termId;
+                }
+                documentLength++;
+            }
+
+            private void endDocument(DefaultSimilarity similarity) {
+                int doc = numDocs++;
+                // Lucene stores norms lossy in a single byte, do the same to get the same scores
+                float lengthNorm = documentLength > 0 ? (float) (1.0 / Math.sqrt(documentLength)) : 0;
+                norms[doc] = similarity.decodeNormValue(similarity.encodeNormValue(lengthNorm));
+
+                for (int i = 0; i < numDocumentTerms; i++) {
+                    int termId = documentTerms[i];
+                    addPosting(termId, doc, termFreqs[termId]);
+                    termFreqs[termId] = 0;
+                }
+            }
+
+            private void addPosting(int termId, int doc, int freq) {
+                if (termId >= postingDocs.length) {
+                    int newLength = Math.max(postingDocs.length * 2, termId + 1);
+                    postingDocs = Arrays.copyOf(postingDocs, newLength);
+                    postingFreqs = Arrays.copyOf(postingFreqs, newLength);
+                    postingSizes = Arrays.copyOf(postingSizes, newLength);
+                }
+                if (postingDocs[termId] == null) {
+                    postingDocs[termId] = new int[4];
+                    postingFreqs[termId] = new int[4];
+                }
+                int size = postingSizes[termId];
+                if (size == postingDocs[termId].length) {
+                    postingDocs[termId] = Arrays.copyOf(postingDocs[termId], size * 2);
+                    postingFreqs[termId] = Arrays.copyOf(postingFreqs[termId], size * 2);
+                }
+                postingDocs[termId][size] = doc;
+                postingFreqs[termId][size] = freq;
+                postingSizes[termId] = size + 1;
+            }
+
+            /**
+             * Trims all arrays to their size and replaces the frequencies by the final weights.
+             */
+            private Index build(DefaultSimilarity similarity) {
+                int numTerms = terms.size();
+                int[][] docs = new int[numTerms][];
+                float[][] weights = new float[numTerms][];
+                for (int termId = 0; termId < numTerms; termId++) {
+                    int size = postingSizes[termId];
+                    docs[termId] = Arrays.copyOf(postingDocs[termId], size);
+                    weights[termId] = new float[size];
+                    for (int p = 0; p < size; p++) {
+                        weights[termId][p] = similarity.tf(postingFreqs[termId][p]) * norms[docs[termId][p]];
+                    }
+                    // Release the build arrays early, large codebases have many terms
+                    postingDocs[termId] = null;
+                    postingFreqs[termId] = null;
+                }
+                terms.trim();
+                return new Index(terms, numDocs, Arrays.copyOf(files, numDocs), docs, weights, similarity);
+            }
+        }
+    }
+
+    /**
+     * Maps terms to consecutive ids. Lookups work directly on the token's char buffer, so strings
+     * are only allocated for new terms.
+     */
+    private static class TermDictionary {
+        private char[][] terms = new char[1024][];
+        private int[] hashes = new int[1024];
+        // Open addressing table of term id + 1, 0 marks an empty slot
+        private int[] table = new int[2048];
+        private int size = 0;
+
+        private int size() {
+            return size;
+        }
+
+        /**
+         * @return the id of the term or -1 if it is unknown
+         */
+        private int lookup(char[] buffer, int length) {
+            int hash = hash(buffer, length);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int termId = table[slot] - 1;
+                if (hashes[termId] == hash && equals(terms[termId], buffer, length)) {
+                    return termId;
+                }
+            }
+            return -1;
+        }
+
+        private int intern(char[] buffer, int length) {
+            int hash = hash(buffer, length);
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            for (; table[slot] != 0; slot = (slot + 1) & mask) {
+                int termId = table[slot] - 1;
+                if (hashes[termId] == hash && equals(terms[termId], buffer, length)) {
+                    return termId;
+                }
+            }
+
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            int termId = size++;
+            terms[termId] = Arrays.copyOf(buffer, length);
+            hashes[termId] = hash;
+            table[slot] = termId + 1;
+
+            if (size * 2 > table.length) {
+                rehash();
+            }
+            return termId;
+        }
+
+        private void trim() {
+            terms = Arrays.copyOf(terms, size);
+            hashes = Arrays.copyOf(hashes, size);
+        }
+
+        private void rehash() {
+            int[] newTable = new int[table.length * 2];
+            int mask = newTable.length - 1;
+            for (int termId = 0; termId < size; termId++) {
+                int slot = hashes[termId] & mask;
+                while (newTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newTable[slot] = termId + 1;
+            }
+            table = newTable;
+        }
+
+        private static int hash(char[] buffer, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            // Spread the bits, the table only uses the lower ones
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equals(char[] term, char[] buffer, int length) {
+            if (term.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (term[i] != buffer[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+
+/**
+ * Cost and shape of a built index, used to trade build time against search latency. The build
+ * time is split into adding the documents and finalizing the index, i.e. merging and closing.
+ */
+class IndexBuildStats {
+    private final int documents;
+    private final long indexingMillis;
+    private final long finalizeMillis;
+    private final int segments;
+    private final long indexBytes;
+
+    IndexBuildStats(int documents, long indexingMillis, long finalizeMillis, int segments, long indexBytes) {
+        this.documents = documents;
+        this.indexingMillis = indexingMillis;
+        this.finalizeMillis = finalizeMillis;
+        this.segments = segments;
+        this.indexBytes = indexBytes;
+    }
+
+    int getDocuments() {
+        return documents;
+    }
+
+    long getIndexingMillis() {
+        return indexingMillis;
+    }
+
+    long getFinalizeMillis() {
+        return finalizeMillis;
+    }
+
+    long getBuildMillis() {
+        return indexingMillis + finalizeMillis;
+    }
+
+    int getSegments() {
+        return segments;
+    }
+
+    long getIndexBytes() {
+        return indexBytes;
+    }
+
+    double getDocumentsPerSecond() {
+        return getBuildMillis() > 0 ? documents * 1000.0 / getBuildMillis() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d documents in %d ms (%d ms indexing, %d ms finalizing, %.1f docs/s), " +
+                        "%d segments, %d bytes",
+                documents, getBuildMillis(), indexingMillis, finalizeMillis, getDocumentsPerSecond(),
+                segments, indexBytes);
+    }
+
+    /**
+     * @return summed size of all files in the directory
+     */
+    static long sizeOf(Directory directory) throws IOException {
+        long size = 0;
+        for (String file : directory.listAll()) {
+            size += directory.fileLength(file);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,172 @@
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps readers of recently used indexes open, so switching between source folders does not
+ * reopen the index and lose Lucene's and the OS' caches each time.
+ * <p>
+ * Searchers are borrowed with {@link #acquire(Path)} and must be given back with
+ * {@link #release(IndexSearcher)}. The pool is bounded by the number of open indexes and,
+ * optionally, by the summed size of their files. When a bound is exceeded, the least recently
+ * used indexes that are not borrowed are closed.
+ */
+class IndexReaderPool {
+    private static class Entry {
+        private final Path path;
+        private final Directory directory;
+        private final DirectoryReader reader;
+        private final IndexSearcher searcher;
+        private final long estimatedBytes;
+        private int references = 0;
+        private boolean retired = false;
+
+        private Entry(Path path, Directory directory, DirectoryReader reader, long estimatedBytes) {
+            this.path = path;
+            this.directory = directory;
+            this.reader = reader;
+            this.searcher = new IndexSearcher(reader);
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        private void close() throws IOException {
+            reader.close();
+            directory.close();
+        }
+    }
+
+    private final int maxOpenIndexes;
+    private final long maxBytes;
+    // Access ordered, the first entry is the least recently used one
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Entries that were evicted or invalidated while still borrowed
+    private final List<Entry> retiredEntries = new ArrayList<>();
+    private long openBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxOpenIndexes maximum number of indexes kept open while not borrowed
+     * @param maxBytes       maximum summed index size in bytes, negative for no limit
+     */
+    IndexReaderPool(int maxOpenIndexes, long maxBytes) {
+        this.maxOpenIndexes = maxOpenIndexes;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized IndexSearcher acquire(Path indexPath) throws IOException {
+        Path key = indexPath.toAbsolutePath().normalize();
+        Entry entry = entries.get(key);
+        SuiteMetrics.get().recordReaderPoolAccess(entry != null);
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+            Directory directory = FSDirectory.open(key);
+            try {
+                DirectoryReader reader = DirectoryReader.open(directory);
+                entry = new Entry(key, directory, reader, IndexBuildStats.sizeOf(directory));
+            } catch (IOException e) {
+                directory.close();
+                throw e;
+            }
+            entries.put(key, entry);
+            openBytes += entry.estimatedBytes;
+        }
+
+        entry.references++;
+        evict();
+        return entry.searcher;
+    }
+
+    synchronized void release(IndexSearcher searcher) throws IOException {
+        for (Entry entry : entries.values()) {
+            if (entry.searcher == searcher) {
+                entry.references--;
+                evict();
+                return;
+            }
+        }
+
+        Iterator<Entry> retired = retiredEntries.iterator();
+        while (retired.hasNext()) {
+            Entry entry = retired.next();
+            if (entry.searcher == searcher) {
+                entry.references--;
+                if (entry.references == 0) {
+                    retired.remove();
+                    entry.close();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the index from the pool, e.g. because it was rebuilt. Borrowed searchers stay
+     * usable until they are released.
+     */
+    synchronized void invalidate(Path indexPath) throws IOException {
+        Entry entry = entries.remove(indexPath.toAbsolutePath().normalize());
+        if (entry != null) {
+            retire(entry);
+        }
+    }
+
+    /**
+     * Closes all indexes that are not borrowed.
+     */
+    synchronized void clear() throws IOException {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            entries.remove(entry.path);
+            retire(entry);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d open indexes (%d bytes), %d hits, %d misses, %d evictions",
+                entries.size(), openBytes, hits, misses, evictions);
+    }
+
+    private void evict() throws IOException {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && isOverBudget()) {
+            Entry entry = iterator.next();
+            if (entry.references > 0) {
+                continue;
+            }
+            iterator.remove();
+            evictions++;
+            Logger.verboseLog(() -> "Closing index " + entry.path);
+            retire(entry);
+        }
+    }
+
+    private boolean isOverBudget() {
+        return entries.size() > maxOpenIndexes || (maxBytes >= 0 && openBytes > maxBytes);
+    }
+
+    private void retire(Entry entry) throws IOException {
+        if (entry.retired) {
+            return;
+        }
+        entry.retired = true;
+        openBytes -= entry.estimatedBytes;
+        if (entry.references == 0) {
+            entry.close();
+        } else {
+            retiredEntries.add(entry);
+        }
+    }
+}
@@ -1,3 +1,17 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous logger. Messages are put into a bounded ring buffer and written to stdout by a
+ * background thread, so logging never blocks the calling thread. If the buffer is full, messages
+ * are dropped and the number of dropped messages is reported once the writer catches up.
+ * <p>
+ * The log level can be set with {@link #setLogLevel(LogLevel)} or the system property
+ * {@value #LOG_LEVEL_PROPERTY}. Use the {@link Supplier} variants for messages that are expensive
+ * to build, they are only evaluated if the level is enabled.
+ */
 public class Logger {
     enum LogLevel {
         VERBOSE,
@@ -5,30 +19,178 @@ public class Logger {
         NONE
     }
 
-    private static LogLevel LOG_LEVEL = LogLevel.VERBOSE;
+    static final String LOG_LEVEL_PROPERTY = "sfl.logLevel";
+
+    // Must be a power of two
+    private static final int BUFFER_CAPACITY = 1 << 13;
+    private static final long FLUSH_POLL_NANOS = 1_000_000;
+    private static final long FLUSH_TIMEOUT_NANOS = 2_000_000_000L;
+
+    private static volatile LogLevel LOG_LEVEL = readLogLevelProperty();
+
+    private static final AtomicReferenceArray<String> buffer = new AtomicReferenceArray<>(BUFFER_CAPACITY);
+    // Next sequence number to be claimed by a producer
+    private static final AtomicLong head = new AtomicLong();
+    // Next sequence number to be written by the writer thread
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong droppedMessages = new AtomicLong();
+    // Set while the writer thread found the buffer empty and is about to park
+    private static volatile boolean writerWaiting;
+    private static final Thread writer = new Thread(Logger::writeLoop, "logger");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "logger-flush"));
+    }
+
+    public static void setLogLevel(LogLevel logLevel) {
+        LOG_LEVEL = logLevel;
+    }
+
+    public static LogLevel getLogLevel() {
+        return LOG_LEVEL;
+    }
+
+    public static boolean isDebugEnabled() {
+        return LOG_LEVEL == LogLevel.VERBOSE || LOG_LEVEL == LogLevel.DEBUG;
+    }
+
+    public static boolean isVerboseEnabled() {
+        return LOG_LEVEL == LogLevel.VERBOSE;
+    }
 
     public static void debugLog(String text) {
-        if (LOG_LEVEL == LogLevel.VERBOSE || LOG_LEVEL == LogLevel.DEBUG) {
-            System.out.println(text);
+        if (isDebugEnabled()) {
+            enqueue(text);
         }
     }
 
     public static void debugLog(String logTag, String text) {
-        if (LOG_LEVEL == LogLevel.VERBOSE || LOG_LEVEL == LogLevel.DEBUG) {
-            System.out.println(logTag + ": " + text);
+        if (isDebugEnabled()) {
+            enqueue(logTag + ": " + text);
+        }
+    }
+
+    public static void debugLog(Supplier<String> text) {
+        if (isDebugEnabled()) {
+            enqueue(text.get());
+        }
+    }
+
+    public static void debugLog(String logTag, Supplier<String> text) {
+        if (isDebugEnabled()) {
+            enqueue(logTag + ": " + text.get());
         }
     }
 
     public static void verboseLog(String text) {
-        if (LOG_LEVEL == LogLevel.VERBOSE) {
-            System.out.println(text);
+        if (isVerboseEnabled()) {
+            enqueue(text);
         }
     }
 
     public static void verboseLog(String logTag, String text) {
-        if (LOG_LEVEL == LogLevel.VERBOSE) {
-            System.out.println(logTag + ": " + text);
+        if (isVerboseEnabled()) {
+            enqueue(logTag + ": " + text);
+        }
+    }
+
+    public static void verboseLog(Supplier<String> text) {
+        if (isVerboseEnabled()) {
+            enqueue(text.get());
         }
     }
 
+    public static void verboseLog(String logTag, Supplier<String> text) {
+        if (isVerboseEnabled()) {
+            enqueue(logTag + ": " + text.get());
+        }
+    }
+
+    /**
+     * Waits until all messages logged so far are written, at most for a few seconds.
+     */
+    public static void flush() {
+        long target = head.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (tail.get() < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(FLUSH_POLL_NANOS);
+        }
+        System.out.flush();
+    }
+
+    private static void enqueue(String text) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= BUFFER_CAPACITY) {
+                droppedMessages.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        buffer.set(slot(sequence), text);
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            long sequence = tail.get();
+            String text;
+            // Collect all published messages, a null slot is either empty or claimed but not yet published
+            while ((text = buffer.get(slot(sequence))) != null) {
+                buffer.set(slot(sequence), null);
+                batch.append(text).append(System.lineSeparator());
+                sequence++;
+            }
+
+            if (batch.length() > 0) {
+                System.out.print(batch);
+                System.out.flush();
+                batch.setLength(0);
+                // Only advance after writing, so flush() returns once the messages are on stdout
+                tail.set(sequence);
+                continue;
+            }
+
+            long dropped = droppedMessages.getAndSet(0);
+            if (dropped > 0) {
+                System.out.println("Logger: dropped " + dropped + " messages, buffer was full");
+            }
+            waitForMessages(sequence);
+        }
+    }
+
+    /**
+     * Parks the writer thread until a producer publishes the message with the given sequence number.
+     */
+    private static void waitForMessages(long sequence) {
+        writerWaiting = true;
+        // Check again after announcing the wait, a producer that published before did not unpark
+        if (buffer.get(slot(sequence)) == null) {
+            LockSupport.park();
+        }
+        writerWaiting = false;
+    }
+
+    private static int slot(long sequence) {
+        return (int) (sequence & (BUFFER_CAPACITY - 1));
+    }
+
+    private static LogLevel readLogLevelProperty() {
+        String level = System.getProperty(LOG_LEVEL_PROPERTY);
+        if (level == null) {
+            return LogLevel.VERBOSE;
+        }
+        try {
+            return LogLevel.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + level + ", using VERBOSE");
+            return LogLevel.VERBOSE;
+        }
+    }
 }
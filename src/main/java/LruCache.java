@@ -0,0 +1,22 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map that evicts the least recently accessed entry once it holds more than maxSize entries.
+ * Not thread safe.
+ */
+class LruCache<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    LruCache(int maxSize) {
+        super(16, 0.75f, true);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+    }
+}
@@ -1,25 +1,113 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Main {
+    private static final String BASELINE_OPTION = "--baseline";
+    private static final String REPEAT_OPTION = "--repeat";
+    private static final String REBUILD_OPTION = "--rebuild";
+    private static final String DAEMON_OPTION = "--daemon";
+    private static final String CLIENT_OPTION = "--client";
+
     public static void main(String[] args) {
         if (args.length < 1) {
             System.out.println("Please specify the benchmark folder");
+            System.out.println("Usage: Main <benchmark folder> [" + BASELINE_OPTION + " <result csv of a previous run>] ["
+                    + REPEAT_OPTION + " <runs>] [" + REBUILD_OPTION + "]");
+            System.out.println("       Main " + DAEMON_OPTION + " [port]");
+            System.out.println("       Main " + CLIENT_OPTION + " <request>, see BenchmarkClient");
+            return;
+        }
+        if (DAEMON_OPTION.equals(args[0])) {
+            runDaemon(args.length > 1 ? Integer.parseInt(args[1]) : BenchmarkDaemon.DEFAULT_PORT);
+            return;
+        }
+        if (CLIENT_OPTION.equals(args[0])) {
+            BenchmarkClient.main(Arrays.copyOfRange(args, 1, args.length));
             return;
         }
         String benchmarkFolder = args[0];
+        File baselineFile = null;
+        int repetitions = 1;
+        boolean rebuildIndexes = false;
+        for (int i = 1; i < args.length; i++) {
+            if (BASELINE_OPTION.equals(args[i]) && i + 1 < args.length) {
+                baselineFile = new File(args[++i]);
+                // Otherwise a run on existing indexes never builds one, and build times are not compared
+                rebuildIndexes = true;
+            } else if (REPEAT_OPTION.equals(args[i]) && i + 1 < args.length) {
+                repetitions = Integer.parseInt(args[++i]);
+            } else if (REBUILD_OPTION.equals(args[i])) {
+                rebuildIndexes = true;
+            } else {
+                System.out.println("Unknown argument " + args[i]);
+                return;
+            }
+        }
         List<BenchmarkSuite> benchmarks = new ArrayList<>();
 
-        TfidfConfiguration config = new TfidfConfiguration()
-                .setScoreCutoff(0.4f)
-                .setStopWordFile("stopwords.txt");
         benchmarks.add(
-                new BenchmarkSuite(new TfidfFeatureLocation(config),
-                        benchmarkFolder));
+                new BenchmarkSuite(createTechnique(rebuildIndexes),
+                        benchmarkFolder).setRepetitions(repetitions));
         // benchmarks.add(...) add more FLTs here
 
         for (BenchmarkSuite suite : benchmarks) {
             suite.runBenchmarks();
+            if (suite.getTechnique() != null) {
+                suite.getTechnique().dispose();
+            }
+        }
+
+        if (baselineFile != null && !checkPerformance(baselineFile, benchmarks)) {
+            Logger.flush();
+            System.exit(1);
+        }
+    }
+
+    private static FeatureLocationTechnique createTechnique(boolean rebuildIndexes) {
+        TfidfConfiguration config = new TfidfConfiguration()
+                .setScoreCutoff(0.4f)
+                .setStopWordFile("stopwords.txt")
+                .setRebuildIndexes(rebuildIndexes);
+        return new TfidfFeatureLocation(config);
+    }
+
+    /**
+     * Keeps the technique resident and serves jobs from clients until they shut the daemon down.
+     */
+    private static void runDaemon(int port) {
+        try {
+            new BenchmarkDaemon(() -> createTechnique(false), port).run();
+        } catch (IOException e) {
+            Logger.debugLog("Daemon failed: " + e.getMessage());
+            e.printStackTrace();
+            Logger.flush();
+            System.exit(1);
+        }
+        Logger.flush();
+    }
+
+    /**
+     * Compares the timings of every suite against the baseline run and prints the reports.
+     *
+     * @return false if any suite regressed or could not be compared
+     */
+    private static boolean checkPerformance(File baselineFile, List<BenchmarkSuite> benchmarks) {
+        Logger.flush();
+        boolean passed = true;
+        for (BenchmarkSuite suite : benchmarks) {
+            PerformanceGate gate = new PerformanceGate();
+            try {
+                System.out.println(gate.compare(baselineFile, suite.getResultFile()));
+            } catch (IOException e) {
+                System.out.println("Could not compare against baseline: " + e.getMessage());
+                passed = false;
+                continue;
+            }
+            passed &= !gate.hasRegressed();
         }
+        return passed;
     }
 }
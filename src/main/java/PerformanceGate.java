@@ -0,0 +1,427 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects slowdowns by comparing the prepare and locate latencies of a run with those of a baseline
+ * run, both read from result CSV files written by {@link BenchmarkSuite}.
+ * <p>
+ * Queries differ a lot in cost, so each query of the current run is paired with the same query
+ * (benchmark and query id) of the baseline run. For each benchmark and for all queries together, a
+ * one sided Wilcoxon signed-rank test over the paired differences checks whether the current
+ * latencies are greater. A metric regressed if the test is significant and the median slowed down
+ * by more than the minimum slowdown, so tiny but consistent differences do not fail the gate. Queries
+ * that were run several times are compared by their median. Only completed queries are compared.
+ * <p>
+ * Building an index dominates the prepare time, so prepare times are only paired between runs that
+ * both reused an index. The build times of queries that built an index in both runs are compared
+ * separately, queries that built an index in only one run are excluded and counted. Record both
+ * runs with {@link TfidfConfiguration#setRebuildIndexes(boolean)}, otherwise a run on existing
+ * indexes builds none.
+ * <p>
+ * The smallest one sided p-value of n pairs is 2^-n, so at the default significance level of 0.01
+ * a metric needs at least 7 pairs; metrics with fewer are reported but never regress. Repeating a
+ * suite (see {@link BenchmarkSuite#setRepetitions(int)}) makes each pair more stable, but does not
+ * add pairs.
+ * <p>
+ * Usage: PerformanceGate &lt;baseline csv&gt; &lt;current csv&gt;
+ */
+public class PerformanceGate {
+    private static final String BENCHMARK_COLUMN = "BenchmarkName";
+    private static final String QUERY_ID_COLUMN = "queryId";
+    private static final String OUTCOME_COLUMN = "outcome";
+    private static final String INDEX_BUILT_COLUMN = "indexBuilt";
+    private static final String INDEX_BUILD_MILLIS_COLUMN = "indexBuildMillis";
+    private static final String PREPARE_MILLIS_COLUMN = ResultAggregator.Metric.PREPARE_MILLIS.getFieldName();
+    private static final String LOCATE_MILLIS_COLUMN = ResultAggregator.Metric.LOCATE_MILLIS.getFieldName();
+    // Exact p-values are computed up to this many pairs without ties, the normal approximation is used above
+    private static final int MAX_EXACT_PAIRS = 30;
+    private static final String ROW_FORMAT = "%-24s %-16s %8s %12s %12s %9s %9s  %s%n";
+
+    private double significanceLevel = 0.01;
+    private double minSlowdown = 0.1;
+    private boolean regressed = false;
+
+    /**
+     * @param significanceLevel maximum p-value of a regression, default 0.01
+     */
+    PerformanceGate setSignificanceLevel(double significanceLevel) {
+        this.significanceLevel = significanceLevel;
+        return this;
+    }
+
+    /**
+     * @param minSlowdown minimum relative increase of the median latency, default 0.1 (10%)
+     */
+    PerformanceGate setMinSlowdown(double minSlowdown) {
+        this.minSlowdown = minSlowdown;
+        return this;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: PerformanceGate <baseline csv> <current csv>");
+            System.exit(2);
+        }
+
+        PerformanceGate gate = new PerformanceGate();
+        try {
+            System.out.println(gate.compare(new File(args[0]), new File(args[1])));
+        } catch (IOException e) {
+            System.out.println("Could not compare runs: " + e.getMessage());
+            System.exit(2);
+        }
+        System.exit(gate.hasRegressed() ? 1 : 0);
+    }
+
+    /**
+     * @return true if the last comparison found a regression
+     */
+    boolean hasRegressed() {
+        return regressed;
+    }
+
+    /**
+     * Compares the runs and returns a readable report. Afterwards {@link #hasRegressed()} tells
+     * whether any benchmark regressed.
+     */
+    String compare(File baselineFile, File currentFile) throws IOException {
+        Map<String, Map<String, QueryTimings>> baseline = readTimings(baselineFile);
+        Map<String, Map<String, QueryTimings>> current = readTimings(currentFile);
+        regressed = false;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Comparing %s against baseline %s%n", currentFile, baselineFile));
+        report.append(String.format("(one sided Wilcoxon signed-rank test over queries paired with the baseline, "
+                + "alpha %.3f, minimum slowdown %.0f%%)%n%n", significanceLevel, minSlowdown * 100));
+        report.append(String.format(ROW_FORMAT,
+                "benchmark", "metric", "pairs", "baseline p50", "current p50", "change", "p-value", "verdict"));
+
+        List<String> regressions = new ArrayList<>();
+        for (String benchmarkName : current.keySet()) {
+            Map<String, QueryTimings> baselineQueries = baseline.getOrDefault(benchmarkName, Collections.emptyMap());
+            Map<String, QueryTimings> currentQueries = current.get(benchmarkName);
+
+            List<double[]> preparePairs = new ArrayList<>();
+            List<double[]> indexBuildPairs = new ArrayList<>();
+            List<double[]> locatePairs = new ArrayList<>();
+            int excludedPreparePairs = 0;
+            for (Map.Entry<String, QueryTimings> query : currentQueries.entrySet()) {
+                QueryTimings baselineTimings = baselineQueries.get(query.getKey());
+                if (baselineTimings == null) {
+                    continue;
+                }
+                QueryTimings currentTimings = query.getValue();
+                addPair(locatePairs, baselineTimings.locateMillis, currentTimings.locateMillis);
+                if (!addPair(preparePairs, baselineTimings.prepareMillis, currentTimings.prepareMillis)
+                        && !addPair(indexBuildPairs, baselineTimings.indexBuildMillis, currentTimings.indexBuildMillis)) {
+                    excludedPreparePairs++;
+                }
+            }
+
+            addRegression(regressions, compareSamples(benchmarkName, PREPARE_MILLIS_COLUMN, preparePairs, report));
+            addRegression(regressions, compareSamples(benchmarkName, INDEX_BUILD_MILLIS_COLUMN, indexBuildPairs, report));
+            addRegression(regressions, compareSamples(benchmarkName, LOCATE_MILLIS_COLUMN, locatePairs, report));
+            if (excludedPreparePairs > 0) {
+                report.append(String.format("%-24s %-16s %8d  excluded, index built in only one run%n",
+                        benchmarkName, PREPARE_MILLIS_COLUMN, excludedPreparePairs));
+            }
+            report.append(String.format("%-24s %-16s %8s %12s %12s%n", benchmarkName, "queries/s", "",
+                    baseline.containsKey(benchmarkName) ? String.format("%.3f", throughput(baselineQueries)) : "",
+                    String.format("%.3f", throughput(currentQueries))));
+        }
+
+        report.append(System.lineSeparator());
+        if (regressions.isEmpty()) {
+            report.append("No significant regressions");
+        } else {
+            regressed = true;
+            report.append(regressions.size()).append(" significant regression(s):");
+            for (String regression : regressions) {
+                report.append(System.lineSeparator()).append("  ").append(regression);
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Adds the pair of median timings of a query if it has timings in both runs.
+     *
+     * @return true if both runs have timings
+     */
+    private static boolean addPair(List<double[]> pairs, List<Double> baseline, List<Double> current) {
+        if (baseline.isEmpty() || current.isEmpty()) {
+            return false;
+        }
+        pairs.add(new double[]{median(toArray(baseline)), median(toArray(current))});
+        return true;
+    }
+
+    private static void addRegression(List<String> regressions, String regression) {
+        if (regression != null) {
+            regressions.add(regression);
+        }
+    }
+
+    /**
+     * Appends a report line and returns a description of the regression, or null if none.
+     *
+     * @param pairs baseline and current timing of each query
+     */
+    private String compareSamples(String benchmarkName, String metric, List<double[]> pairs, StringBuilder report) {
+        if (pairs.isEmpty()) {
+            return null;
+        }
+        if (pairs.size() < getMinPairs()) {
+            report.append(String.format(ROW_FORMAT,
+                    benchmarkName, metric, pairs.size(), "", "", "", "", "not enough pairs"));
+            return null;
+        }
+
+        double[] baselineSamples = new double[pairs.size()];
+        double[] currentSamples = new double[pairs.size()];
+        for (int i = 0; i < pairs.size(); i++) {
+            baselineSamples[i] = pairs.get(i)[0];
+            currentSamples[i] = pairs.get(i)[1];
+        }
+        double baselineMedian = median(baselineSamples);
+        double currentMedian = median(currentSamples);
+        double change = baselineMedian > 0 ? currentMedian / baselineMedian - 1 : 0;
+        double pValue = wilcoxonGreaterPValue(baselineSamples, currentSamples);
+        boolean isRegression = pValue < significanceLevel && change > minSlowdown;
+
+        report.append(String.format("%-24s %-16s %8d %12.3f %12.3f %+8.1f%% %9.4f  %s%n",
+                benchmarkName, metric, pairs.size(), baselineMedian, currentMedian,
+                change * 100, pValue, isRegression ? "REGRESSION" : "ok"));
+
+        return isRegression
+                ? String.format("%s %s: median %.3f ms -> %.3f ms (%+.1f%%, p=%.4f)",
+                benchmarkName, metric, baselineMedian, currentMedian, change * 100, pValue)
+                : null;
+    }
+
+    /**
+     * @return number of pairs below which no outcome reaches the significance level; the smallest
+     * one sided p-value of n pairs is 2^-n
+     */
+    private int getMinPairs() {
+        int minPairs = 1;
+        while (Math.pow(0.5, minPairs) >= significanceLevel) {
+            minPairs++;
+        }
+        return minPairs;
+    }
+
+    /**
+     * @return completed queries per second of prepare and locate time, index builds included
+     */
+    private static double throughput(Map<String, QueryTimings> queries) {
+        double totalMillis = 0;
+        int runs = 0;
+        for (QueryTimings timings : queries.values()) {
+            totalMillis += timings.totalMillis;
+            runs += timings.locateMillis.size();
+        }
+        return totalMillis > 0 ? runs * 1000 / totalMillis : 0;
+    }
+
+    /**
+     * Reads the timings of completed queries per benchmark and query id, plus all of them under
+     * {@link ResultAggregator#SUITE_NAME}. Summary rows are skipped.
+     */
+    private static Map<String, Map<String, QueryTimings>> readTimings(File csvFile) throws IOException {
+        Map<String, Map<String, QueryTimings>> timings = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                throw new IOException(csvFile + " is empty");
+            }
+            List<String> header = Arrays.asList(headerLine.split(","));
+            int benchmarkColumn = getColumn(header, BENCHMARK_COLUMN, csvFile);
+            int queryIdColumn = getColumn(header, QUERY_ID_COLUMN, csvFile);
+            int outcomeColumn = header.indexOf(OUTCOME_COLUMN);
+            int indexBuiltColumn = getColumn(header, INDEX_BUILT_COLUMN, csvFile);
+            int indexBuildMillisColumn = getColumn(header, INDEX_BUILD_MILLIS_COLUMN, csvFile);
+            int prepareMillisColumn = getColumn(header, PREPARE_MILLIS_COLUMN, csvFile);
+            int locateMillisColumn = getColumn(header, LOCATE_MILLIS_COLUMN, csvFile);
+
+            Map<String, QueryTimings> suiteTimings = new LinkedHashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split(",", -1);
+                if (values.length < header.size()
+                        || values[queryIdColumn].startsWith(BenchmarkSuite.SUMMARY_ROW_PREFIX)
+                        || (outcomeColumn >= 0 && !QueryResult.Outcome.COMPLETED.name().equals(values[outcomeColumn]))) {
+                    continue;
+                }
+
+                boolean indexBuilt = Boolean.parseBoolean(values[indexBuiltColumn]);
+                double prepareMillis = parseMillis(values, prepareMillisColumn, header, csvFile, line);
+                double locateMillis = parseMillis(values, locateMillisColumn, header, csvFile, line);
+                double indexBuildMillis = indexBuilt ? parseMillis(values, indexBuildMillisColumn, header, csvFile, line) : 0;
+                String benchmarkName = values[benchmarkColumn];
+                String queryId = values[queryIdColumn];
+                timings.computeIfAbsent(benchmarkName, name -> new LinkedHashMap<>())
+                        .computeIfAbsent(queryId, id -> new QueryTimings())
+                        .add(indexBuilt, prepareMillis, indexBuildMillis, locateMillis);
+                suiteTimings.computeIfAbsent(benchmarkName + "/" + queryId, id -> new QueryTimings())
+                        .add(indexBuilt, prepareMillis, indexBuildMillis, locateMillis);
+            }
+            timings.put(ResultAggregator.SUITE_NAME, suiteTimings);
+        }
+        return timings;
+    }
+
+    private static int getColumn(List<String> header, String column, File csvFile) throws IOException {
+        int index = header.indexOf(column);
+        if (index < 0) {
+            throw new IOException(csvFile + " has no " + column + " column, rerun it with the current version");
+        }
+        return index;
+    }
+
+    private static double parseMillis(String[] values, int column, List<String> header, File csvFile, String line)
+            throws IOException {
+        try {
+            return Double.parseDouble(values[column]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + header.get(column) + " in " + csvFile + ": " + line);
+        }
+    }
+
+    /**
+     * One sided Wilcoxon signed-rank test over paired values. The p-value is exact for up to
+     * {@value #MAX_EXACT_PAIRS} pairs without ties, otherwise the normal approximation corrected for
+     * ties and continuity is used. Pairs with equal values are dropped.
+     *
+     * @return the p-value of the hypothesis that the current values tend to be greater than their baseline
+     */
+    static double wilcoxonGreaterPValue(double[] baseline, double[] current) {
+        double[] differences = new double[baseline.length];
+        int n = 0;
+        for (int i = 0; i < baseline.length; i++) {
+            if (current[i] != baseline[i]) {
+                differences[n++] = current[i] - baseline[i];
+            }
+        }
+        if (n == 0) {
+            return 1;
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(Math.abs(differences[a]), Math.abs(differences[b])));
+
+        // Sum of the ranks of the positive differences, tied absolute differences get their average rank
+        double positiveRankSum = 0;
+        double tieCorrection = 0;
+        for (int start = 0; start < n; ) {
+            int end = start;
+            while (end + 1 < n && Math.abs(differences[order[end + 1]]) == Math.abs(differences[order[start]])) {
+                end++;
+            }
+            double rank = (start + end) / 2.0 + 1;
+            for (int i = start; i <= end; i++) {
+                if (differences[order[i]] > 0) {
+                    positiveRankSum += rank;
+                }
+            }
+            double ties = end - start + 1;
+            tieCorrection += ties * ties * ties - ties;
+            start = end + 1;
+        }
+
+        if (n <= MAX_EXACT_PAIRS && tieCorrection == 0) {
+            return exactSignedRankPValue(n, (int) positiveRankSum);
+        }
+        double mean = n * (n + 1) / 4.0;
+        double variance = n * (n + 1) * (2.0 * n + 1) / 24 - tieCorrection / 48;
+        if (variance <= 0) {
+            return 1;
+        }
+        double z = (positiveRankSum - mean - 0.5) / Math.sqrt(variance);
+        return 1 - normalCdf(z);
+    }
+
+    /**
+     * @return probability that the signed-rank sum of n pairs is at least rankSum if there is no difference
+     */
+    private static double exactSignedRankPValue(int n, int rankSum) {
+        // Number of subsets of the ranks 1..n per sum
+        int maxSum = n * (n + 1) / 2;
+        double[] counts = new double[maxSum + 1];
+        counts[0] = 1;
+        for (int rank = 1; rank <= n; rank++) {
+            for (int sum = maxSum; sum >= rank; sum--) {
+                counts[sum] += counts[sum - rank];
+            }
+        }
+        double atLeast = 0;
+        for (int sum = rankSum; sum <= maxSum; sum++) {
+            atLeast += counts[sum];
+        }
+        return atLeast / Math.pow(2, n);
+    }
+
+    private static double normalCdf(double z) {
+        return 0.5 * erfc(-z / Math.sqrt(2));
+    }
+
+    /**
+     * Complementary error function with a fractional error below 1.2e-7 (Chebyshev approximation
+     * from Numerical Recipes).
+     */
+    private static double erfc(double x) {
+        double t = 1 / (1 + 0.5 * Math.abs(x));
+        double result = t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+                + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? result : 2 - result;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static double[] toArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Timings of one query in one run, queries can have several rows if they were run repeatedly.
+     */
+    private static class QueryTimings {
+        // Prepare times of the runs that reused an index
+        private final List<Double> prepareMillis = new ArrayList<>();
+        private final List<Double> indexBuildMillis = new ArrayList<>();
+        private final List<Double> locateMillis = new ArrayList<>();
+        private double totalMillis = 0;
+
+        private void add(boolean indexBuilt, double prepareMillis, double indexBuildMillis, double locateMillis) {
+            if (indexBuilt) {
+                this.indexBuildMillis.add(indexBuildMillis);
+            } else {
+                this.prepareMillis.add(prepareMillis);
+            }
+            this.locateMillis.add(locateMillis);
+            totalMillis += prepareMillis + locateMillis;
+        }
+    }
+}
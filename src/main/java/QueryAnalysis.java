@@ -1,6 +1,7 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -11,12 +12,22 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class QueryAnalysis {
     private static final String RESULT_FILE_PREFIX = "Result";
     private static final String RESULT_FILE_EXTENSION = ".txt";
+    // Time a technique gets to react to cancel() before it is abandoned
+    private static final long CANCEL_GRACE_PERIOD_MILLIS = 5000;
 
     private String benchmarkName;
     private FeatureLocationTechnique featureLocationTechnique;
@@ -26,6 +37,9 @@ public class QueryAnalysis {
     private Set<String> goldSet = new HashSet<>();
     private OutputStreamWriter resultWriter;
     private File resultsDir;
+    private long prepareTimeout = -1;
+    private long queryTimeout = -1;
+    private boolean techniqueAbandoned = false;
 
     QueryAnalysis(String benchmarkName, FeatureLocationTechnique technique,
                   Integer queryId, File queryFile, File sourcesDir, File goldSetFile, File resultsDir) {
@@ -38,16 +52,113 @@ public class QueryAnalysis {
         this.resultsDir = resultsDir;
     }
 
+    /**
+     * Sets the time budgets for preparing the codebase and for locating the query.
+     *
+     * @param prepareTimeout maximum time in milliseconds for prepareCodebase, negative for no limit
+     * @param queryTimeout   maximum time in milliseconds for locate, negative for no limit
+     */
+    void setTimeouts(long prepareTimeout, long queryTimeout) {
+        this.prepareTimeout = prepareTimeout;
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * @return true if the technique did not stop within the grace period after it was cancelled. It
+     * is still running on an abandoned thread and must not be used anymore.
+     */
+    boolean isTechniqueAbandoned() {
+        return techniqueAbandoned;
+    }
+
     QueryResult run() {
+        ExecutorService executor = null;
+        if (prepareTimeout >= 0 || queryTimeout >= 0) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, benchmarkName + "-query-" + queryId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        SuiteMetrics metrics = SuiteMetrics.get();
+        metrics.queryStarted();
+        try {
+            return runQuery(executor);
+        } finally {
+            metrics.queryFinished();
+            if (executor != null) {
+                if (techniqueAbandoned) {
+                    // Runs once the abandoned call returned, if ever
+                    executor.execute(() -> {
+                        featureLocationTechnique.teardown();
+                        featureLocationTechnique.dispose();
+                    });
+                }
+                // Not shutdownNow, the abandoned call must not be interrupted either
+                executor.shutdown();
+            }
+        }
+    }
+
+    private QueryResult runQuery(ExecutorService executor) {
+        long startTime = System.nanoTime();
         try {
-            featureLocationTechnique.prepareCodebase(sourcesDir);
+            runWithTimeout(executor, () -> {
+                featureLocationTechnique.prepareCodebase(sourcesDir);
+                return null;
+            }, prepareTimeout);
+        } catch (TimeoutException e) {
+            // The cancelled prepare may still have opened an index before it stopped
+            teardown();
+            Logger.debugLog(benchmarkName, String.format("Preparing codebase for query %d timed out after %d ms",
+                    queryId, prepareTimeout));
+            QueryResult result = QueryResult.timedOut(queryId, goldSet.size(), QueryResult.Outcome.PREPARE_TIMEOUT);
+            result.setTimings(toMillis(System.nanoTime() - startTime), 0);
+            return result;
         } catch (IOException e) {
             Logger.debugLog("Error preparing Codebase");
             e.printStackTrace();
             return null;
+        } catch (RuntimeException e) {
+            teardown();
+            Logger.debugLog(benchmarkName, "Technique failed preparing the codebase for query " + queryId);
+            e.printStackTrace();
+            QueryResult result = QueryResult.failed(queryId, goldSet.size());
+            result.setTimings(toMillis(System.nanoTime() - startTime), 0);
+            return result;
         }
 
-        Set<SearchResult> results = featureLocationTechnique.locate(query);
+        long preparedTime = System.nanoTime();
+        double prepareMillis = toMillis(preparedTime - startTime);
+        IndexBuildStats buildStats = featureLocationTechnique.getLastBuildStats();
+
+        Set<SearchResult> results;
+        try {
+            results = runWithTimeout(executor, () -> featureLocationTechnique.locate(query), queryTimeout);
+        } catch (TimeoutException e) {
+            teardown();
+            Logger.debugLog(benchmarkName, String.format("Query %d timed out after %d ms",
+                    queryId, queryTimeout));
+            QueryResult result = QueryResult.timedOut(queryId, goldSet.size(), QueryResult.Outcome.QUERY_TIMEOUT);
+            result.setTimings(prepareMillis, toMillis(System.nanoTime() - preparedTime));
+            result.setIndexBuildStats(buildStats);
+            return result;
+        } catch (IOException e) {
+            teardown();
+            Logger.debugLog(benchmarkName, "Error locating query " + queryId);
+            e.printStackTrace();
+            return null;
+        } catch (RuntimeException e) {
+            teardown();
+            Logger.debugLog(benchmarkName, "Technique failed locating query " + queryId);
+            e.printStackTrace();
+            QueryResult result = QueryResult.failed(queryId, goldSet.size());
+            result.setTimings(prepareMillis, toMillis(System.nanoTime() - preparedTime));
+            result.setIndexBuildStats(buildStats);
+            return result;
+        }
+        double locateMillis = toMillis(System.nanoTime() - preparedTime);
         featureLocationTechnique.teardown();
 
         if (resultsDir != null) {
@@ -61,7 +172,99 @@ public class QueryAnalysis {
             Logger.debugLog("Could not find result folder");
         }
 
-        return calculateQueryResult(results);
+        QueryResult result = calculateQueryResult(results);
+        result.setTimings(prepareMillis, locateMillis);
+        result.setIndexBuildStats(buildStats);
+        return result;
+    }
+
+    /**
+     * Tears the technique down, unless it was abandoned and may still be running.
+     */
+    private void teardown() {
+        if (!techniqueAbandoned) {
+            featureLocationTechnique.teardown();
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Runs the task on the executor and waits at most timeout milliseconds for it. On timeout the
+     * technique is cancelled and the task is awaited for the grace period, so teardown and the next
+     * query never run concurrently with it; a task that does not stop in time is abandoned, see
+     * {@link #isTechniqueAbandoned()}. The thread is not interrupted, since an interrupt during
+     * Lucene's NIO reads closes the channels shared by all users of the index. Without an executor
+     * or timeout the task runs on the calling thread.
+     */
+    private <T> T runWithTimeout(ExecutorService executor, Callable<T> task, long timeout)
+            throws IOException, TimeoutException {
+        if (executor == null || timeout < 0) {
+            try {
+                return task.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        Future<T> future = executor.submit(task);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            featureLocationTechnique.cancel();
+            awaitCancelled(future);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            featureLocationTechnique.cancel();
+            awaitCancelled(future);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for query " + queryId);
+        }
+    }
+
+    /**
+     * Waits at most the grace period for a cancelled task to end, otherwise abandons the technique.
+     */
+    private void awaitCancelled(Future<?> future) {
+        boolean interrupted = Thread.interrupted();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CANCEL_GRACE_PERIOD_MILLIS);
+        try {
+            while (true) {
+                try {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    return;
+                } catch (TimeoutException stillRunning) {
+                    techniqueAbandoned = true;
+                    Logger.debugLog(benchmarkName, String.format(
+                            "Technique did not stop within %d ms of cancelling query %d, abandoning it",
+                            CANCEL_GRACE_PERIOD_MILLIS, queryId));
+                    return;
+                } catch (ExecutionException | CancellationException ignored) {
+                    // Task ended, possibly with an exception caused by the cancellation
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private void readQuery(File queryFile) {
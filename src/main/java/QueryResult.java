@@ -1,4 +1,15 @@
-public class QueryResult implements Comparable<QueryResult> {
+import java.io.Serializable;
+
+public class QueryResult implements Comparable<QueryResult>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum Outcome {
+        COMPLETED,
+        PREPARE_TIMEOUT,
+        QUERY_TIMEOUT,
+        FAILED
+    }
+
     private int queryId;
     private int goldSetLength;
     private int resultLength;
@@ -9,6 +20,14 @@ public class QueryResult implements Comparable<QueryResult> {
     private float recall;
     private float f1Measure;
     private float top5Precision;
+    private Outcome outcome;
+    private double prepareMillis;
+    private double locateMillis;
+    private boolean indexBuilt;
+    private int indexDocuments;
+    private long indexBuildMillis;
+    private int indexSegments;
+    private long indexBytes;
 
     QueryResult(int queryID, int goldSetLength, int resultLength, int numberOfMatches,
                 int overheadResults, int top5Matches) {
@@ -22,6 +41,49 @@ public class QueryResult implements Comparable<QueryResult> {
         this.recall = calculateRecall();
         this.f1Measure = calculateF1Measure();
         this.top5Precision = calculateTop5Precision();
+        this.outcome = Outcome.COMPLETED;
+    }
+
+    /**
+     * Result of a query that was cancelled because it exceeded its time budget.
+     * All result based metrics are zero.
+     */
+    static QueryResult timedOut(int queryId, int goldSetLength, Outcome outcome) {
+        QueryResult result = new QueryResult(queryId, goldSetLength, 0, 0, 0, 0);
+        result.outcome = outcome;
+        return result;
+    }
+
+    /**
+     * Result of a query for which the technique threw an exception. All result based metrics are zero.
+     */
+    static QueryResult failed(int queryId, int goldSetLength) {
+        QueryResult result = new QueryResult(queryId, goldSetLength, 0, 0, 0, 0);
+        result.outcome = Outcome.FAILED;
+        return result;
+    }
+
+    /**
+     * @param prepareMillis wall clock time of prepareCodebase in milliseconds
+     * @param locateMillis  wall clock time of locate in milliseconds
+     */
+    void setTimings(double prepareMillis, double locateMillis) {
+        this.prepareMillis = prepareMillis;
+        this.locateMillis = locateMillis;
+    }
+
+    /**
+     * @param stats statistics of the index built while preparing the codebase for this query, null
+     *              if an existing index was reused
+     */
+    void setIndexBuildStats(IndexBuildStats stats) {
+        indexBuilt = stats != null;
+        if (stats != null) {
+            indexDocuments = stats.getDocuments();
+            indexBuildMillis = stats.getBuildMillis();
+            indexSegments = stats.getSegments();
+            indexBytes = stats.getIndexBytes();
+        }
     }
 
     public int getQueryId() {
@@ -64,9 +126,41 @@ public class QueryResult implements Comparable<QueryResult> {
         return f1Measure;
     }
 
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public double getPrepareMillis() {
+        return prepareMillis;
+    }
+
+    public double getLocateMillis() {
+        return locateMillis;
+    }
+
+    public boolean isIndexBuilt() {
+        return indexBuilt;
+    }
+
+    public int getIndexDocuments() {
+        return indexDocuments;
+    }
+
+    public long getIndexBuildMillis() {
+        return indexBuildMillis;
+    }
+
+    public int getIndexSegments() {
+        return indexSegments;
+    }
+
+    public long getIndexBytes() {
+        return indexBytes;
+    }
+
     @Override
     public String toString() {
-        return String.format("%s,%s,%s,%s,%s,%s,%.5f,%.5f,%.5f,%5f",
+        return String.format("%s,%s,%s,%s,%s,%s,%.5f,%.5f,%.5f,%5f,%s,%.3f,%.3f,%s,%s,%s,%s,%s",
                 queryId,
                 goldSetLength,
                 resultLength,
@@ -76,7 +170,15 @@ public class QueryResult implements Comparable<QueryResult> {
                 precision,
                 recall,
                 f1Measure,
-                top5Precision);
+                top5Precision,
+                outcome,
+                prepareMillis,
+                locateMillis,
+                indexBuilt,
+                indexDocuments,
+                indexBuildMillis,
+                indexSegments,
+                indexBytes);
     }
 
     @Override
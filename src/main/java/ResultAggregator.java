@@ -0,0 +1,92 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Aggregates query results as they arrive into per benchmark and suite wide statistics of each
+ * metric (see {@link RunningStatistics}). Memory use depends only on the number of benchmarks, not
+ * on the number of queries.
+ */
+class ResultAggregator {
+    static final String SUITE_NAME = "ALL";
+
+    enum Metric {
+        GOLD_SET_LENGTH("goldSetLength", QueryResult::getGoldSetLength),
+        RESULT_LENGTH("resultLength", QueryResult::getResultLength),
+        NUMBER_OF_MATCHES("numberOfMatches", QueryResult::getNumberOfMatches),
+        OVERHEAD_RESULTS("overheadResults", QueryResult::getOverheadResults),
+        TOP5_MATCHES("top5Matches", QueryResult::getTop5Matches),
+        PRECISION("precision", QueryResult::getPrecision),
+        RECALL("recall", QueryResult::getRecall),
+        F1_MEASURE("f1Measure", QueryResult::getF1Measure),
+        TOP5_PRECISION("top5Precision", QueryResult::getTop5Precision),
+        PREPARE_MILLIS("prepareMillis", QueryResult::getPrepareMillis),
+        LOCATE_MILLIS("locateMillis", QueryResult::getLocateMillis);
+
+        private final String fieldName;
+        private final ToDoubleFunction<QueryResult> extractor;
+
+        Metric(String fieldName, ToDoubleFunction<QueryResult> extractor) {
+            this.fieldName = fieldName;
+            this.extractor = extractor;
+        }
+
+        /**
+         * @return name of the corresponding field and CSV column of {@link QueryResult}
+         */
+        String getFieldName() {
+            return fieldName;
+        }
+
+        static Metric forFieldName(String fieldName) {
+            for (Metric metric : values()) {
+                if (metric.fieldName.equals(fieldName)) {
+                    return metric;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Map<String, Map<Metric, RunningStatistics>> benchmarkStatistics = new LinkedHashMap<>();
+    private final Map<Metric, RunningStatistics> suiteStatistics = createStatistics();
+
+    synchronized void add(String benchmarkName, QueryResult result) {
+        Map<Metric, RunningStatistics> statistics =
+                benchmarkStatistics.computeIfAbsent(benchmarkName, name -> createStatistics());
+        for (Metric metric : Metric.values()) {
+            double value = metric.extractor.applyAsDouble(result);
+            statistics.get(metric).add(value);
+            suiteStatistics.get(metric).add(value);
+        }
+    }
+
+    /**
+     * @return names of the benchmarks in the order their first result arrived
+     */
+    synchronized Set<String> getBenchmarkNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(benchmarkStatistics.keySet()));
+    }
+
+    /**
+     * @param benchmarkName name of a benchmark or {@link #SUITE_NAME} for the whole suite
+     * @return the statistics or null if no result of the benchmark was added
+     */
+    synchronized RunningStatistics getStatistics(String benchmarkName, Metric metric) {
+        Map<Metric, RunningStatistics> statistics = SUITE_NAME.equals(benchmarkName)
+                ? suiteStatistics : benchmarkStatistics.get(benchmarkName);
+        return statistics != null ? statistics.get(metric) : null;
+    }
+
+    private static Map<Metric, RunningStatistics> createStatistics() {
+        Map<Metric, RunningStatistics> statistics = new EnumMap<>(Metric.class);
+        for (Metric metric : Metric.values()) {
+            statistics.put(metric, new RunningStatistics());
+        }
+        return statistics;
+    }
+}
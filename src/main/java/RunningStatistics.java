@@ -0,0 +1,207 @@
+import java.util.Arrays;
+
+/**
+ * Summary statistics of a stream of values in constant memory: count, mean and variance with
+ * Welford's algorithm, exact minimum and maximum, and the median and 90th percentile estimated with
+ * the P-square algorithm (Jain and Chlamtac).
+ */
+class RunningStatistics {
+    enum Statistic {
+        COUNT,
+        MEAN,
+        STDDEV,
+        MIN,
+        P50,
+        P90,
+        MAX
+    }
+
+    private long count = 0;
+    private double mean = 0;
+    // Sum of squared differences from the mean
+    private double m2 = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private final P2Quantile median = new P2Quantile(0.5);
+    private final P2Quantile p90 = new P2Quantile(0.9);
+
+    void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        min = count == 1 ? value : Math.min(min, value);
+        max = count == 1 ? value : Math.max(max, value);
+        median.add(value);
+        p90.add(value);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * @return the sample variance, 0 for a single value
+     */
+    double getVariance() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return count > 1 ? m2 / (count - 1) : 0;
+    }
+
+    double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    double getMedian() {
+        return median.get();
+    }
+
+    double getP90() {
+        return p90.get();
+    }
+
+    double get(Statistic statistic) {
+        switch (statistic) {
+            case COUNT:
+                return count;
+            case MEAN:
+                return getMean();
+            case STDDEV:
+                return getStandardDeviation();
+            case MIN:
+                return min;
+            case P50:
+                return getMedian();
+            case P90:
+                return getP90();
+            case MAX:
+                return max;
+            default:
+                throw new IllegalArgumentException("Unknown statistic " + statistic);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, mean=%.5f, stddev=%.5f, min=%.5f, p50=%.5f, p90=%.5f, max=%.5f",
+                count, getMean(), getStandardDeviation(), min, getMedian(), getP90(), max);
+    }
+
+    /**
+     * P-square estimator of a single quantile. Keeps five markers whose heights approximate the minimum,
+     * the p/2, p and (1+p)/2 quantiles and the maximum; the markers are moved with piecewise
+     * parabolic interpolation as values arrive. Exact for the first five values.
+     */
+    private static class P2Quantile {
+        private static final int MARKERS = 5;
+
+        private final double p;
+        private final double[] heights = new double[MARKERS];
+        private final int[] positions = new int[MARKERS];
+        private final double[] desiredPositions = new double[MARKERS];
+        private final double[] increments;
+        private int count = 0;
+
+        private P2Quantile(double p) {
+            this.p = p;
+            this.increments = new double[]{0, p / 2, p, (1 + p) / 2, 1};
+        }
+
+        private void add(double value) {
+            if (count < MARKERS) {
+                heights[count++] = value;
+                if (count == MARKERS) {
+                    Arrays.sort(heights);
+                    for (int i = 0; i < MARKERS; i++) {
+                        positions[i] = i + 1;
+                    }
+                    desiredPositions[0] = 1;
+                    desiredPositions[1] = 1 + 2 * p;
+                    desiredPositions[2] = 1 + 4 * p;
+                    desiredPositions[3] = 3 + 2 * p;
+                    desiredPositions[4] = 5;
+                }
+                return;
+            }
+            count++;
+
+            // Find the cell of the value, extending the extreme markers if necessary
+            int cell;
+            if (value < heights[0]) {
+                heights[0] = value;
+                cell = 0;
+            } else if (value >= heights[MARKERS - 1]) {
+                heights[MARKERS - 1] = value;
+                cell = MARKERS - 2;
+            } else {
+                cell = 0;
+                while (value >= heights[cell + 1]) {
+                    cell++;
+                }
+            }
+
+            for (int i = cell + 1; i < MARKERS; i++) {
+                positions[i]++;
+            }
+            for (int i = 0; i < MARKERS; i++) {
+                desiredPositions[i] += increments[i];
+            }
+
+            for (int i = 1; i < MARKERS - 1; i++) {
+                double offset = desiredPositions[i] - positions[i];
+                if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+                        || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                    int direction = offset >= 1 ? 1 : -1;
+                    double height = parabolic(i, direction);
+                    if (heights[i - 1] < height && height < heights[i + 1]) {
+                        heights[i] = height;
+                    } else {
+                        heights[i] = linear(i, direction);
+                    }
+                    positions[i] += direction;
+                }
+            }
+        }
+
+        private double parabolic(int i, int direction) {
+            return heights[i] + (double) direction / (positions[i + 1] - positions[i - 1])
+                    * ((positions[i] - positions[i - 1] + direction) * (heights[i + 1] - heights[i])
+                    / (positions[i + 1] - positions[i])
+                    + (positions[i + 1] - positions[i] - direction) * (heights[i] - heights[i - 1])
+                    / (positions[i] - positions[i - 1]));
+        }
+
+        private double linear(int i, int direction) {
+            return heights[i] + direction * (heights[i + direction] - heights[i])
+                    / (positions[i + direction] - positions[i]);
+        }
+
+        private double get() {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            if (count <= MARKERS) {
+                // Nearest rank on the values seen so far, the markers are only adjusted from the sixth value on
+                double[] sorted = Arrays.copyOf(heights, count);
+                Arrays.sort(sorted);
+                int rank = (int) Math.ceil(p * count);
+                return sorted[Math.max(0, rank - 1)];
+            }
+            return heights[2];
+        }
+    }
+}
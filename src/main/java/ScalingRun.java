@@ -0,0 +1,326 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures how a technique scales with the corpus size. For each class count a synthetic benchmark
+ * is generated (see {@link SyntheticBenchmarkGenerator}) and run, recording the index time, the
+ * locate latency and the heap usage. The measurements are written to scaling_&lt;technique&gt;.csv
+ * together with a gnuplot script plotting them, which is run if gnuplot is installed.
+ * <p>
+ * With {@value #COMPARE_MODE} instead of a technique, {@link TfidfFeatureLocation} and
+ * {@link InMemoryTfidfFeatureLocation} run every query of each benchmark. Their results must contain
+ * the same classes with the same scores; the mismatches and the index and locate times of both are
+ * written to scaling_COMPARE.csv, and the process exits with code 1 if any query differed.
+ * <p>
+ * Usage: ScalingRun &lt;work folder&gt; &lt;class counts, e.g. 1000,10000,100000&gt; [TFIDF|TFIDF_MEMORY|COMPARE]
+ */
+public class ScalingRun {
+    private static final String BENCHMARK_NAME = "Synthetic";
+    private static final String CSV_HEADER = "classes,sourceBytes,indexMillis,meanLocateMillis,p50LocateMillis," +
+            "p90LocateMillis,retainedHeapBytes,peakHeapBytes";
+    private static final String COMPARE_MODE = "COMPARE";
+    private static final String COMPARE_CSV_HEADER = "classes,queries,mismatches,luceneIndexMillis,memoryIndexMillis," +
+            "luceneMeanLocateMillis,memoryMeanLocateMillis";
+    // Both techniques sum the same float weights, but not necessarily in the same order
+    private static final double SCORE_TOLERANCE = 1e-5;
+    private static final int MAX_LOGGED_MISMATCHES = 5;
+
+    private final File workFolder;
+    private final String techniqueId;
+
+    private ScalingRun(File workFolder, String techniqueId) {
+        this.workFolder = workFolder;
+        this.techniqueId = techniqueId;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: ScalingRun <work folder> <class counts, e.g. 1000,10000,100000> [TFIDF|TFIDF_MEMORY|COMPARE]");
+            System.exit(2);
+        }
+
+        List<Integer> classCounts = new ArrayList<>();
+        for (String classCount : args[1].split(",")) {
+            classCounts.add(Integer.parseInt(classCount.trim()));
+        }
+        ScalingRun run = new ScalingRun(new File(args[0]), args.length > 2 ? args[2] : "TFIDF");
+        try {
+            if (COMPARE_MODE.equals(run.techniqueId)) {
+                if (!run.compare(classCounts)) {
+                    Logger.flush();
+                    System.exit(1);
+                }
+            } else {
+                run.run(classCounts);
+            }
+        } catch (IOException e) {
+            Logger.debugLog("Scaling run failed: " + e.getMessage());
+            e.printStackTrace();
+            Logger.flush();
+            System.exit(1);
+        }
+        Logger.flush();
+    }
+
+    private void run(List<Integer> classCounts) throws IOException {
+        // Create the technique once to fail early on unknown ids
+        createTechnique(techniqueId);
+        if (!workFolder.isDirectory() && !workFolder.mkdirs()) {
+            throw new IOException("Could not create " + workFolder);
+        }
+
+        File csvFile = new File(workFolder, "scaling_" + techniqueId + ".csv");
+        try (Writer out = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            out.write(CSV_HEADER + "\n");
+            for (int classes : classCounts) {
+                String row = measure(classes);
+                out.write(row + "\n");
+                out.flush();
+            }
+        }
+
+        File plotFile = writePlotScript(csvFile);
+        plot(plotFile);
+    }
+
+    /**
+     * @return false if the techniques returned different results for any query
+     */
+    private boolean compare(List<Integer> classCounts) throws IOException {
+        if (!workFolder.isDirectory() && !workFolder.mkdirs()) {
+            throw new IOException("Could not create " + workFolder);
+        }
+
+        int mismatches = 0;
+        File csvFile = new File(workFolder, "scaling_" + COMPARE_MODE + ".csv");
+        try (Writer out = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            out.write(COMPARE_CSV_HEADER + "\n");
+            for (int classes : classCounts) {
+                File benchmarkFolder = generateBenchmark(classes);
+                File[] queryFiles = new File(benchmarkFolder, "Queries").listFiles((dir, name) -> name.endsWith(".txt"));
+                if (queryFiles == null) {
+                    throw new IOException("No queries generated in " + benchmarkFolder);
+                }
+                Arrays.sort(queryFiles);
+                List<String> queries = new ArrayList<>();
+                for (File queryFile : queryFiles) {
+                    queries.add(new String(Files.readAllBytes(queryFile.toPath()), StandardCharsets.UTF_8));
+                }
+
+                File sourceFolder = new File(benchmarkFolder, "Sources" + File.separator + "Source");
+                TechniqueRun lucene = new TechniqueRun(createTechnique("TFIDF"), sourceFolder, queries);
+                TechniqueRun memory = new TechniqueRun(createTechnique("TFIDF_MEMORY"), sourceFolder, queries);
+                int classesMismatches = 0;
+                for (int i = 0; i < queries.size(); i++) {
+                    String difference = compareResults(lucene.results.get(i), memory.results.get(i));
+                    if (difference != null && ++classesMismatches <= MAX_LOGGED_MISMATCHES) {
+                        String queryName = queryFiles[i].getName();
+                        Logger.debugLog(COMPARE_MODE, () -> String.format("%d classes, %s: %s", classes, queryName, difference));
+                    }
+                }
+                mismatches += classesMismatches;
+
+                out.write(String.format("%d,%d,%d,%d,%d,%.3f,%.3f\n", classes, queries.size(), classesMismatches,
+                        lucene.indexMillis, memory.indexMillis, lucene.getMeanLocateMillis(), memory.getMeanLocateMillis()));
+                out.flush();
+                int loggedMismatches = classesMismatches;
+                Logger.debugLog(COMPARE_MODE, () -> String.format(
+                        "%d classes: %d of %d queries differ, mean locate %.3f ms (Lucene) vs %.3f ms (in memory)",
+                        classes, loggedMismatches, queries.size(), lucene.getMeanLocateMillis(), memory.getMeanLocateMillis()));
+            }
+        }
+        return mismatches == 0;
+    }
+
+    /**
+     * @return description of the first difference, or null if both contain the same classes with the same scores
+     */
+    private static String compareResults(Set<SearchResult> expected, Set<SearchResult> actual) {
+        if (expected.size() != actual.size()) {
+            return String.format("%d results instead of %d", actual.size(), expected.size());
+        }
+        Map<String, Double> expectedScores = new HashMap<>();
+        for (SearchResult result : expected) {
+            expectedScores.put(result.getClassName(), result.getScore());
+        }
+        for (SearchResult result : actual) {
+            Double expectedScore = expectedScores.get(result.getClassName());
+            if (expectedScore == null) {
+                return "unexpected result " + result.getClassName();
+            }
+            if (Math.abs(result.getScore() - expectedScore) > SCORE_TOLERANCE * Math.max(1, Math.abs(expectedScore))) {
+                return String.format("%s scored %f instead of %f", result.getClassName(), result.getScore(), expectedScore);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the CSV row of the measurements
+     */
+    private String measure(int classes) throws IOException {
+        File benchmarkFolder = generateBenchmark(classes);
+        File suiteFolder = benchmarkFolder.getParentFile();
+        File sourceFolder = new File(benchmarkFolder, "Sources" + File.separator + "Source");
+        long sourceBytes = FileUtils.sizeOfDirectory(sourceFolder);
+
+        FeatureLocationTechnique technique = createTechnique(techniqueId);
+        long heapBefore = getUsedHeapAfterGc();
+        resetPeakHeap();
+
+        long startTime = System.nanoTime();
+        technique.prepareCodebase(sourceFolder);
+        long indexMillis = (System.nanoTime() - startTime) / 1_000_000;
+        long retainedHeap = getUsedHeapAfterGc() - heapBefore;
+        technique.teardown();
+
+        BenchmarkSuite suite = new BenchmarkSuite(technique, suiteFolder.getPath()).setRetainResults(false);
+        suite.runBenchmarks();
+        if (suite.getTechnique() != null) {
+            suite.getTechnique().dispose();
+        }
+        long peakHeap = getPeakHeap();
+        RunningStatistics locate = suite.getResultAggregator()
+                .getStatistics(ResultAggregator.SUITE_NAME, ResultAggregator.Metric.LOCATE_MILLIS);
+
+        String row = String.format("%d,%d,%d,%.3f,%.3f,%.3f,%d,%d", classes, sourceBytes, indexMillis,
+                locate.getMean(), locate.getMedian(), locate.getP90(), retainedHeap, peakHeap);
+        Logger.debugLog(techniqueId, () -> String.format("%d classes: indexed in %d ms, mean locate %.3f ms, %d MB peak heap",
+                classes, indexMillis, locate.getMean(), peakHeap / (1024 * 1024)));
+        return row;
+    }
+
+    /**
+     * @return the benchmark folder, in a suite folder of its own
+     */
+    private File generateBenchmark(int classes) throws IOException {
+        // A fresh folder per size, so no index of an earlier run is reused
+        File suiteFolder = new File(workFolder, "classes_" + classes);
+        FileUtils.deleteDirectory(suiteFolder);
+        File benchmarkFolder = new File(suiteFolder, BENCHMARK_NAME);
+        new SyntheticBenchmarkGenerator().setClasses(classes).generate(benchmarkFolder);
+        return benchmarkFolder;
+    }
+
+    private static FeatureLocationTechnique createTechnique(String techniqueId) {
+        TfidfConfiguration config = new TfidfConfiguration().setStopWordFile("stopwords.txt");
+        switch (techniqueId) {
+            case "TFIDF":
+                return new TfidfFeatureLocation(config);
+            case "TFIDF_MEMORY":
+                return new InMemoryTfidfFeatureLocation(config);
+            default:
+                throw new IllegalArgumentException("Unknown technique " + techniqueId);
+        }
+    }
+
+    private File writePlotScript(File csvFile) throws IOException {
+        String csvName = csvFile.getName();
+        File plotFile = new File(workFolder, "scaling_" + techniqueId + ".gp");
+        String script = String.join("\n",
+                "set datafile separator \",\"",
+                "set terminal pngcairo size 1500,450",
+                "set output \"scaling_" + techniqueId + ".png\"",
+                "set multiplot layout 1,3 title \"Scaling of " + techniqueId + "\"",
+                "set logscale xy",
+                "set xlabel \"classes\"",
+                "set key top left",
+                "set ylabel \"index time (ms)\"",
+                "plot \"" + csvName + "\" every ::1 using 1:3 with linespoints title \"prepare\"",
+                "set ylabel \"locate latency (ms)\"",
+                "plot \"" + csvName + "\" every ::1 using 1:5 with linespoints title \"median\", \\",
+                "     \"" + csvName + "\" every ::1 using 1:6 with linespoints title \"90th percentile\"",
+                "set ylabel \"heap (MB)\"",
+                "plot \"" + csvName + "\" every ::1 using 1:($7/1048576) with linespoints title \"retained by index\", \\",
+                "     \"" + csvName + "\" every ::1 using 1:($8/1048576) with linespoints title \"peak\"",
+                "unset multiplot",
+                "");
+        Files.write(plotFile.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        return plotFile;
+    }
+
+    private void plot(File plotFile) {
+        try {
+            Process process = new ProcessBuilder("gnuplot", plotFile.getName())
+                    .directory(workFolder).inheritIO().start();
+            if (process.waitFor() == 0) {
+                Logger.debugLog(() -> "Plotted to " + new File(workFolder, "scaling_" + techniqueId + ".png"));
+                return;
+            }
+        } catch (IOException e) {
+            // gnuplot is not installed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Logger.debugLog(() -> "Could not run gnuplot, plot with: cd " + workFolder + " && gnuplot " + plotFile.getName());
+    }
+
+    /**
+     * Prepares the codebase and runs all queries with one technique, then disposes it.
+     */
+    private static class TechniqueRun {
+        private final List<Set<SearchResult>> results = new ArrayList<>();
+        private final long indexMillis;
+        private long locateNanos = 0;
+
+        private TechniqueRun(FeatureLocationTechnique technique, File sourceFolder, List<String> queries)
+                throws IOException {
+            long startTime = System.nanoTime();
+            technique.prepareCodebase(sourceFolder);
+            indexMillis = (System.nanoTime() - startTime) / 1_000_000;
+            for (String query : queries) {
+                long queryStartTime = System.nanoTime();
+                results.add(technique.locate(query));
+                locateNanos += System.nanoTime() - queryStartTime;
+            }
+            technique.teardown();
+            technique.dispose();
+        }
+
+        private double getMeanLocateMillis() {
+            return results.isEmpty() ? 0 : locateNanos / 1e6 / results.size();
+        }
+    }
+
+    private static long getUsedHeapAfterGc() {
+        // A single request often leaves garbage of the previous phase behind
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return sum of the peak usage of all heap pools since the last reset, an upper bound of the peak heap
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
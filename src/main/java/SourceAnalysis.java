@@ -0,0 +1,209 @@
+import com.ibm.icu.text.CharsetDetector;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.StopFilterFactory;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Text processing shared by the TF-IDF techniques, so their results stay comparable: reading and
+ * splitting source files, the analyzer chain and mapping source files to class names.
+ */
+class SourceAnalysis {
+    private static final String LOG_TAG = "SourceAnalysis";
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // Analyzers are thread safe and only depend on the stop word file, share them between instances
+    private static final Map<String, Analyzer> analyzers = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the analyzer for the stop word file, it is only built on first use.
+     *
+     * @param stopWordFile stop word file or null to keep all words
+     */
+    static Analyzer getAnalyzer(String stopWordFile) throws IOException {
+        try {
+            return analyzers.computeIfAbsent(Objects.toString(stopWordFile, ""), key -> {
+                try {
+                    return buildAnalyzer(stopWordFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Opens the source file as a stream of its contents with split identifiers, see
+     * {@link #preprocessText(String)}. The file is decoded and split on the fly, so memory use
+     * is bounded by the buffer size and not by the file size.
+     *
+     * @param bufferSize size of the read buffers in bytes and characters
+     * @return the preprocessed contents or null if the charset could not be detected from the
+     * beginning of the file
+     */
+    static Reader openPreprocessedReader(File file, int bufferSize) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), bufferSize);
+        Charset fileCharset = detectCharSet(file, in);
+        if (fileCharset == null) {
+            in.close();
+            return null;
+        }
+        return new IdentifierSplittingReader(new InputStreamReader(in, fileCharset), bufferSize);
+    }
+
+    /**
+     * Like {@link #openPreprocessedReader(File, int)}, but reads through the token cache if given.
+     *
+     * @param tokenCache cache of preprocessed files or null
+     */
+    static Reader openPreprocessedReader(File file, int bufferSize, TokenCache tokenCache) throws IOException {
+        return tokenCache != null
+                ? tokenCache.openPreprocessedReader(file, bufferSize)
+                : openPreprocessedReader(file, bufferSize);
+    }
+
+    /**
+     * Replace all non-alphanumerical characters with whitespace and split camel case identifiers
+     *
+     * @return String containing only alphanumerical characters
+     */
+    static String preprocessText(String text) {
+        int bufferSize = Math.max(16, Math.min(text.length(), DEFAULT_BUFFER_SIZE));
+        StringBuilder builder = new StringBuilder(text.length());
+        try (Reader reader = new IdentifierSplittingReader(new StringReader(text), bufferSize)) {
+            char[] buffer = new char[bufferSize];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                builder.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // Cannot happen for a StringReader
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Derives the fully qualified class name from the file name and the package declaration.
+     *
+     * @return the class name or null if the file has no package declaration or cannot be read
+     */
+    static String getClassName(File sourceFile) {
+        try {
+            String className;
+            AtomicReference<String> packageName = new AtomicReference<>(null);
+
+            String[] splits = sourceFile.getName().split("\\.");
+            className = String.join(".", Arrays.copyOfRange(
+                    splits, 0, splits.length - 1));
+
+            Charset fileCharset = detectCharSet(sourceFile);
+            if (fileCharset == null) {
+                Logger.debugLog(LOG_TAG, "Could not find Charset for file " + sourceFile);
+                return null;
+            }
+            try (Stream<String> stream = Files.lines(Paths.get(sourceFile.getPath()), fileCharset)) {
+                AtomicBoolean continued = new AtomicBoolean(false);
+                try {
+                    stream.forEach(line -> {
+                        String trimmed = line.trim();
+                        if (trimmed.startsWith("package") && packageName.get() == null) {
+                            // Remove package tag
+                            trimmed = trimmed.substring("package".length(), trimmed.length());
+
+                            packageName.set(trimmed);
+
+                            if (!line.contains(";")) {
+                                continued.set(true);
+                            }
+                        } else if (continued.get()) {
+                            if (line.contains(";")) {
+                                continued.set(false);
+                                packageName.set(packageName.get() + "." + trimmed);
+                            }
+                            packageName.set(packageName.get() + line.trim());
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    Logger.debugLog(LOG_TAG, String.format("Error reading file %s", sourceFile));
+                }
+            }
+
+
+            if (packageName.get() != null && className != null) {
+                // Remove semicolon(s) and whitespaces
+                packageName.set(packageName.get().replaceAll(";", "").replaceAll("\\s", ""));
+
+                return packageName + "." + className;
+            }
+        } catch (IOException e) {
+            Logger.debugLog(LOG_TAG, "Could not read " + sourceFile);
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    static Charset detectCharSet(File file) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            return detectCharSet(file, in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Detects the charset from the beginning of the stream. The stream must support mark/reset,
+     * it is reset to its start afterwards.
+     */
+    private static Charset detectCharSet(File file, InputStream in) {
+        try {
+            CharsetDetector detector = new CharsetDetector();
+            detector.setText(in);
+            return Charset.forName(detector.detect().getName());
+        } catch (IllegalArgumentException | IOException e) {
+            Logger.debugLog(LOG_TAG, "Could not detect charset of " + file);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Analyzer buildAnalyzer(String stopWordFile) throws IOException {
+        CustomAnalyzer.Builder analyzerBuilder = CustomAnalyzer.builder(Paths.get(System.getProperty("user.dir")))
+                .withTokenizer("standard")
+                .addTokenFilter("lowercase");
+
+        if (stopWordFile != null) {
+            analyzerBuilder.addTokenFilter("stop",
+                    "ignoreCase", "true",
+                    "words", stopWordFile,
+                    "format", StopFilterFactory.FORMAT_WORDSET);
+        }
+
+        analyzerBuilder.addTokenFilter("porterstem");
+
+        return analyzerBuilder.build();
+    }
+}
@@ -0,0 +1,352 @@
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the queries of a suite in several worker JVMs ({@link SuiteWorker}).
+ * <p>
+ * The coordinator and its workers communicate through a shared work directory: every
+ * benchmark/query pair becomes a task file in {@value #TASKS_FOLDER_NAME}. Workers claim tasks by
+ * atomically moving them into their folder in {@value #CLAIMED_FOLDER_NAME} and publish the
+ * serialized {@link QueryResult} in {@value #RESULTS_FOLDER_NAME}. The coordinator hands the
+ * results on in task order, so the output is the same as for a run in a single JVM. Tasks claimed
+ * by a crashed worker, or by one that works on the same task for longer than the task timeout, are
+ * put back and the worker is replaced.
+ */
+class SuiteCoordinator {
+    static final String TECHNIQUE_FILE_NAME = "technique.ser";
+    static final String TASKS_FOLDER_NAME = "tasks";
+    static final String CLAIMED_FOLDER_NAME = "claimed";
+    static final String RESULTS_FOLDER_NAME = "results";
+    static final String DONE_FILE_NAME = "done";
+    static final String TASK_FILE_EXTENSION = ".task";
+    static final String RESULT_FILE_EXTENSION = ".result";
+    static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    static final String BENCHMARK_FOLDER_PROPERTY = "benchmarkFolder";
+    static final String RESULT_FOLDER_PROPERTY = "resultFolder";
+    static final String QUERY_ID_PROPERTY = "queryId";
+    static final String PREPARE_TIMEOUT_PROPERTY = "prepareTimeout";
+    static final String QUERY_TIMEOUT_PROPERTY = "queryTimeout";
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final long WORKER_SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    // A task that crashed or hung its worker this often is skipped
+    private static final int MAX_TASK_ATTEMPTS = 3;
+    // Per worker slot, guards against workers that cannot even start. Killed hung workers do not
+    // count, they are bounded by the task attempts
+    private static final int MAX_WORKER_CRASHES = 10;
+
+    private final FeatureLocationTechnique technique;
+    private final int numWorkers;
+    private final List<String> workerJvmArguments;
+    private final long prepareTimeout;
+    private final long queryTimeout;
+    private final long taskTimeout;
+
+    private File workDir;
+    private File tasksDir;
+    private File claimedDir;
+    private File resultsDir;
+    private final Map<Integer, Process> workers = new HashMap<>();
+    private final Map<String, Integer> taskAttempts = new HashMap<>();
+    // When the coordinator first saw each claimed task file
+    private final Map<File, Long> claimTimes = new HashMap<>();
+    // Tasks whose result was handed on, a worker may exit before removing their claim
+    private final Set<String> collectedTasks = new HashSet<>();
+    // Workers killed because they hung, their exit is not a crash
+    private final Set<Integer> killedWorkers = new HashSet<>();
+    private int nextWorkerId = 0;
+    private int crashes = 0;
+    private volatile boolean cancelled = false;
+
+    SuiteCoordinator(FeatureLocationTechnique technique, int numWorkers, List<String> workerJvmArguments,
+                     long prepareTimeout, long queryTimeout, long taskTimeout) {
+        this.technique = technique;
+        this.numWorkers = numWorkers;
+        this.workerJvmArguments = workerJvmArguments;
+        this.prepareTimeout = prepareTimeout;
+        this.queryTimeout = queryTimeout;
+        this.taskTimeout = taskTimeout;
+    }
+
+    /**
+     * Stops {@link #run(List, BiConsumer)} at the next poll, running workers are stopped.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Runs all queries of the benchmarks and passes the results to the consumer in the order of the
+     * benchmarks and their query ids. Queries that could not be run are omitted.
+     */
+    void run(List<Benchmark> benchmarks, BiConsumer<Benchmark, QueryResult> resultConsumer) throws IOException {
+        if (!(technique instanceof Serializable)) {
+            throw new NotSerializableException(
+                    "Technique " + technique.getId() + " must be serializable to run in worker processes");
+        }
+
+        workDir = Files.createTempDirectory("sfl_suite_").toFile();
+        tasksDir = new File(workDir, TASKS_FOLDER_NAME);
+        claimedDir = new File(workDir, CLAIMED_FOLDER_NAME);
+        resultsDir = new File(workDir, RESULTS_FOLDER_NAME);
+        try {
+            if (!tasksDir.mkdir() || !claimedDir.mkdir() || !resultsDir.mkdir()) {
+                throw new IOException("Could not create work directory " + workDir);
+            }
+            writeTechnique();
+            List<Benchmark> taskBenchmarks = writeTasks(benchmarks);
+            Logger.debugLog(() -> String.format("Distributing %d queries to %d workers using %s",
+                    taskBenchmarks.size(), numWorkers, workDir));
+
+            for (int i = 0; i < numWorkers; i++) {
+                startWorker();
+            }
+            collectResults(taskBenchmarks, resultConsumer);
+        } finally {
+            SuiteMetrics.get().setWorkerInFlightQueries(0);
+            stopWorkers();
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    private void writeTechnique() throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream(new File(workDir, TECHNIQUE_FILE_NAME)))) {
+            out.writeObject(technique);
+        }
+    }
+
+    /**
+     * @return the benchmark of each task, indexed by task number
+     */
+    private List<Benchmark> writeTasks(List<Benchmark> benchmarks) throws IOException {
+        List<Benchmark> taskBenchmarks = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            for (Integer queryId : benchmark.getQueryIds()) {
+                Properties task = new Properties();
+                task.setProperty(BENCHMARK_FOLDER_PROPERTY, benchmark.getRootFolder().getAbsolutePath());
+                if (benchmark.getResultDir() != null) {
+                    task.setProperty(RESULT_FOLDER_PROPERTY, benchmark.getResultDir().getAbsolutePath());
+                }
+                task.setProperty(QUERY_ID_PROPERTY, String.valueOf(queryId));
+                task.setProperty(PREPARE_TIMEOUT_PROPERTY, String.valueOf(prepareTimeout));
+                task.setProperty(QUERY_TIMEOUT_PROPERTY, String.valueOf(queryTimeout));
+
+                // Write to a temporary file first, so workers never see incomplete tasks
+                File taskFile = new File(tasksDir, getTaskName(taskBenchmarks.size()) + TASK_FILE_EXTENSION);
+                File tempFile = new File(workDir, taskFile.getName() + TEMP_FILE_EXTENSION);
+                try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                    task.store(out, null);
+                }
+                Files.move(tempFile.toPath(), taskFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                taskBenchmarks.add(benchmark);
+            }
+        }
+        return taskBenchmarks;
+    }
+
+    private void collectResults(List<Benchmark> taskBenchmarks,
+                                BiConsumer<Benchmark, QueryResult> resultConsumer) throws IOException {
+        int nextTask = 0;
+        while (nextTask < taskBenchmarks.size()) {
+            if (cancelled) {
+                Logger.debugLog(String.format("Cancelled with %d of %d queries done", nextTask, taskBenchmarks.size()));
+                return;
+            }
+            String taskName = getTaskName(nextTask);
+            File resultFile = new File(resultsDir, taskName + RESULT_FILE_EXTENSION);
+            if (resultFile.exists()) {
+                QueryResult result = readResult(resultFile);
+                if (result != null) {
+                    resultConsumer.accept(taskBenchmarks.get(nextTask), result);
+                }
+                Files.delete(resultFile.toPath());
+                collectedTasks.add(taskName);
+                nextTask++;
+                continue;
+            }
+
+            if (taskAttempts.getOrDefault(taskName, 0) >= MAX_TASK_ATTEMPTS) {
+                Logger.debugLog(String.format("Skipping task %s of %s, it crashed or hung %d workers",
+                        taskName, taskBenchmarks.get(nextTask).getName(), MAX_TASK_ATTEMPTS));
+                nextTask++;
+                continue;
+            }
+
+            checkWorkers();
+            SuiteMetrics.get().setWorkerInFlightQueries(countClaimedTasks());
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for results", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of tasks the workers are running right now
+     */
+    private int countClaimedTasks() {
+        int claimed = 0;
+        for (Integer workerId : workers.keySet()) {
+            String[] tasks = new File(claimedDir, String.valueOf(workerId)).list();
+            claimed += tasks != null ? tasks.length : 0;
+        }
+        return claimed;
+    }
+
+    private QueryResult readResult(File resultFile) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(resultFile))) {
+            return (QueryResult) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read result " + resultFile, e);
+        }
+    }
+
+    /**
+     * Replaces crashed and hung workers and puts their claimed tasks back.
+     */
+    private void checkWorkers() throws IOException {
+        killHungWorkers();
+        for (Map.Entry<Integer, Process> worker : new ArrayList<>(workers.entrySet())) {
+            if (worker.getValue().isAlive()) {
+                continue;
+            }
+
+            int workerId = worker.getKey();
+            Logger.debugLog(String.format("Worker %d exited with code %d, reassigning its queries",
+                    workerId, worker.getValue().exitValue()));
+            workers.remove(workerId);
+            boolean killed = killedWorkers.remove(workerId);
+
+            File[] claimedTasks = new File(claimedDir, String.valueOf(workerId)).listFiles();
+            if (claimedTasks != null) {
+                for (File task : claimedTasks) {
+                    String taskName = task.getName().substring(0, task.getName().length() - TASK_FILE_EXTENSION.length());
+                    if (collectedTasks.contains(taskName)
+                            || new File(resultsDir, taskName + RESULT_FILE_EXTENSION).exists()) {
+                        // Published before the worker exited, only the claim was left
+                        Files.delete(task.toPath());
+                        continue;
+                    }
+                    int attempts = taskAttempts.merge(taskName, 1, Integer::sum);
+                    if (attempts < MAX_TASK_ATTEMPTS) {
+                        Files.move(task.toPath(), new File(tasksDir, task.getName()).toPath(),
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.delete(task.toPath());
+                    }
+                }
+            }
+
+            if (!killed && ++crashes > numWorkers * MAX_WORKER_CRASHES) {
+                throw new IOException("Workers crashed " + crashes + " times, giving up");
+            }
+            startWorker();
+        }
+    }
+
+    /**
+     * Kills workers that run the same task for longer than the task timeout, they are then
+     * handled like crashed workers.
+     */
+    private void killHungWorkers() {
+        if (taskTimeout < 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Set<File> claimedTasks = new HashSet<>();
+        for (Map.Entry<Integer, Process> worker : workers.entrySet()) {
+            File[] tasks = new File(claimedDir, String.valueOf(worker.getKey())).listFiles();
+            if (tasks == null) {
+                continue;
+            }
+            for (File task : tasks) {
+                claimedTasks.add(task);
+                long runningMillis = TimeUnit.NANOSECONDS.toMillis(now - claimTimes.computeIfAbsent(task, t -> now));
+                if (runningMillis > taskTimeout && worker.getValue().isAlive()) {
+                    Logger.debugLog(String.format("Worker %d is running task %s for %d ms, killing it",
+                            worker.getKey(), task.getName(), runningMillis));
+                    destroy(worker.getValue());
+                    killedWorkers.add(worker.getKey());
+                }
+            }
+        }
+        claimTimes.keySet().retainAll(claimedTasks);
+    }
+
+    private static void destroy(Process process) {
+        try {
+            process.destroyForcibly().waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startWorker() throws IOException {
+        int workerId = nextWorkerId++;
+        File workerClaimedDir = new File(claimedDir, String.valueOf(workerId));
+        if (!workerClaimedDir.mkdir()) {
+            throw new IOException("Could not create " + workerClaimedDir);
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-D" + Logger.LOG_LEVEL_PROPERTY + "=" + Logger.getLogLevel());
+        command.addAll(workerJvmArguments);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SuiteWorker.class.getName());
+        command.add(workDir.getAbsolutePath());
+        command.add(String.valueOf(workerId));
+
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        workers.put(workerId, process);
+    }
+
+    private void stopWorkers() {
+        try {
+            // Idle workers exit once they see the done file
+            new File(workDir, DONE_FILE_NAME).createNewFile();
+        } catch (IOException e) {
+            Logger.debugLog("Could not signal workers to stop");
+        }
+
+        for (Process process : workers.values()) {
+            try {
+                if (!process.waitFor(WORKER_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.clear();
+    }
+
+    static String getTaskName(int taskNumber) {
+        return String.format("%08d", taskNumber);
+    }
+}
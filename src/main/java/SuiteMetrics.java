@@ -0,0 +1,364 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process wide metrics of the running suites. Updated by the suite and the query analysis, read
+ * via JMX (see {@link SuiteMetricsMBean}) or periodically dumped to a file. Latencies and index
+ * builds are taken from the query results, so a suite distributed to worker processes reports
+ * them in the coordinating process as well. All updates are lock free, so they can be called on
+ * hot paths.
+ */
+public class SuiteMetrics implements SuiteMetricsMBean {
+    static final String OBJECT_NAME = "sfl_benchmark:type=SuiteMetrics";
+
+    // Window for the recent throughput, one bucket per second
+    private static final int RECENT_WINDOW_SECONDS = 60;
+    // A bucket packs the second it counts (upper bits) and the completions in it (lower bits), so
+    // moving it to a new second and counting are a single atomic update
+    private static final int BUCKET_COUNT_BITS = 24;
+    private static final long BUCKET_COUNT_MASK = (1L << BUCKET_COUNT_BITS) - 1;
+    // Origin of the bucket seconds, so they are never negative like System.nanoTime() may be
+    private static final long SECONDS_ORIGIN_NANOS = System.nanoTime();
+
+    private static final SuiteMetrics instance = new SuiteMetrics();
+    private static boolean registered = false;
+
+    private volatile String currentBenchmark = "";
+    private volatile long startTime = System.nanoTime();
+    private final AtomicLong queriesCompleted = new AtomicLong();
+    private final AtomicLong queriesTimedOut = new AtomicLong();
+    private final AtomicInteger inFlightQueries = new AtomicInteger();
+    private final AtomicInteger workerInFlightQueries = new AtomicInteger();
+    private final AtomicLongArray recentCompletions = new AtomicLongArray(RECENT_WINDOW_SECONDS);
+
+    private final AtomicLong indexesBuilt = new AtomicLong();
+    private final AtomicLong documentsIndexed = new AtomicLong();
+    private final AtomicLong indexBuildMillis = new AtomicLong();
+    private final AtomicLong readerPoolHits = new AtomicLong();
+    private final AtomicLong readerPoolMisses = new AtomicLong();
+
+    private final LatencyStats prepareLatency = new LatencyStats();
+    private final LatencyStats locateLatency = new LatencyStats();
+
+    private ScheduledExecutorService dumpExecutor;
+    private Writer dumpWriter;
+
+    private SuiteMetrics() {
+    }
+
+    static SuiteMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, if not done before.
+     */
+    static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (JMException e) {
+            Logger.debugLog("Could not register metrics MBean");
+            e.printStackTrace();
+        }
+    }
+
+    void setCurrentBenchmark(String benchmarkName) {
+        currentBenchmark = benchmarkName;
+    }
+
+    void queryStarted() {
+        inFlightQueries.incrementAndGet();
+    }
+
+    void queryFinished() {
+        inFlightQueries.decrementAndGet();
+    }
+
+    /**
+     * @param queries queries currently running in worker processes of this suite
+     */
+    void setWorkerInFlightQueries(int queries) {
+        workerInFlightQueries.set(queries);
+    }
+
+    /**
+     * Counts the query and records its latencies, if it completed, and the index it built, if any.
+     */
+    void recordResult(QueryResult result) {
+        queriesCompleted.incrementAndGet();
+        if (result.getOutcome() == QueryResult.Outcome.PREPARE_TIMEOUT
+                || result.getOutcome() == QueryResult.Outcome.QUERY_TIMEOUT) {
+            queriesTimedOut.incrementAndGet();
+        }
+        if (result.getOutcome() == QueryResult.Outcome.COMPLETED) {
+            prepareLatency.record(toNanos(result.getPrepareMillis()));
+            locateLatency.record(toNanos(result.getLocateMillis()));
+        }
+        if (result.isIndexBuilt()) {
+            recordIndexBuild(result.getIndexDocuments(), result.getIndexBuildMillis());
+        }
+
+        long second = currentSecond();
+        recentCompletions.getAndUpdate((int) (second % RECENT_WINDOW_SECONDS), bucket -> {
+            long bucketSecond = bucket >>> BUCKET_COUNT_BITS;
+            if (bucketSecond < second) {
+                return (second << BUCKET_COUNT_BITS) | 1;
+            }
+            // A completion of a second that already left the window is not counted
+            return bucketSecond == second && (bucket & BUCKET_COUNT_MASK) < BUCKET_COUNT_MASK ? bucket + 1 : bucket;
+        });
+    }
+
+    void recordIndexBuild(int documents, long millis) {
+        indexesBuilt.incrementAndGet();
+        documentsIndexed.addAndGet(documents);
+        indexBuildMillis.addAndGet(millis);
+    }
+
+    /**
+     * @param hit true if the index reader was still open, false if it had to be opened
+     */
+    void recordReaderPoolAccess(boolean hit) {
+        (hit ? readerPoolHits : readerPoolMisses).incrementAndGet();
+    }
+
+    /**
+     * Appends a line with all metrics to the file every interval until {@link #stopDump()} is called.
+     */
+    synchronized void startDump(File file, long intervalMillis) throws IOException {
+        stopDump();
+        boolean newFile = !file.exists() || file.length() == 0;
+        dumpWriter = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+        if (newFile) {
+            dumpWriter.write("time,currentBenchmark,queriesCompleted,queriesTimedOut,inFlightQueries," +
+                    "queriesPerSecond,recentQueriesPerSecond,indexesBuilt,documentsIndexed,indexDocumentsPerSecond," +
+                    "averagePrepareMillis,maxPrepareMillis,averageLocateMillis,maxLocateMillis,readerPoolHits,readerPoolMisses,heapUsedBytes,heapMaxBytes\n");
+            dumpWriter.flush();
+        }
+
+        dumpExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumpExecutor.scheduleAtFixedRate(this::dump, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a final line and closes the dump file.
+     */
+    synchronized void stopDump() {
+        if (dumpExecutor == null) {
+            return;
+        }
+        dumpExecutor.shutdownNow();
+        dumpExecutor = null;
+        dump();
+        try {
+            dumpWriter.close();
+        } catch (IOException e) {
+            Logger.debugLog("Could not close metrics file");
+            e.printStackTrace();
+        }
+        dumpWriter = null;
+    }
+
+    private synchronized void dump() {
+        if (dumpWriter == null) {
+            return;
+        }
+        try {
+            dumpWriter.write(String.format("%s,%s,%d,%d,%d,%.3f,%.3f,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d\n",
+                    new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date()),
+                    getCurrentBenchmark().replaceAll(",", ""),
+                    getQueriesCompleted(), getQueriesTimedOut(), getInFlightQueries(),
+                    getQueriesPerSecond(), getRecentQueriesPerSecond(),
+                    getIndexesBuilt(), getDocumentsIndexed(), getIndexDocumentsPerSecond(),
+                    getAveragePrepareMillis(), getMaxPrepareMillis(),
+                    getAverageLocateMillis(), getMaxLocateMillis(),
+                    getReaderPoolHits(), getReaderPoolMisses(),
+                    getHeapUsedBytes(), getHeapMaxBytes()));
+            dumpWriter.flush();
+        } catch (IOException e) {
+            Logger.debugLog("Could not write metrics file");
+        }
+    }
+
+    @Override
+    public String getCurrentBenchmark() {
+        return currentBenchmark;
+    }
+
+    @Override
+    public long getQueriesCompleted() {
+        return queriesCompleted.get();
+    }
+
+    @Override
+    public long getQueriesTimedOut() {
+        return queriesTimedOut.get();
+    }
+
+    @Override
+    public int getInFlightQueries() {
+        return inFlightQueries.get() + workerInFlightQueries.get();
+    }
+
+    @Override
+    public double getQueriesPerSecond() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? queriesCompleted.get() / seconds : 0;
+    }
+
+    /**
+     * @return completed queries per second over the last minute
+     */
+    @Override
+    public double getRecentQueriesPerSecond() {
+        long now = currentSecond();
+        long completions = 0;
+        for (int i = 0; i < RECENT_WINDOW_SECONDS; i++) {
+            long bucket = recentCompletions.get(i);
+            if (now - (bucket >>> BUCKET_COUNT_BITS) < RECENT_WINDOW_SECONDS) {
+                completions += bucket & BUCKET_COUNT_MASK;
+            }
+        }
+        double seconds = Math.min(RECENT_WINDOW_SECONDS, (System.nanoTime() - startTime) / 1e9);
+        return seconds > 0 ? completions / seconds : 0;
+    }
+
+    @Override
+    public long getIndexesBuilt() {
+        return indexesBuilt.get();
+    }
+
+    @Override
+    public long getDocumentsIndexed() {
+        return documentsIndexed.get();
+    }
+
+    @Override
+    public double getIndexDocumentsPerSecond() {
+        long millis = indexBuildMillis.get();
+        return millis > 0 ? documentsIndexed.get() * 1000.0 / millis : 0;
+    }
+
+    @Override
+    public double getAveragePrepareMillis() {
+        return prepareLatency.getAverage();
+    }
+
+    @Override
+    public double getMaxPrepareMillis() {
+        return prepareLatency.getMax();
+    }
+
+    @Override
+    public double getAverageLocateMillis() {
+        return locateLatency.getAverage();
+    }
+
+    @Override
+    public double getMaxLocateMillis() {
+        return locateLatency.getMax();
+    }
+
+    @Override
+    public long getReaderPoolHits() {
+        return readerPoolHits.get();
+    }
+
+    @Override
+    public long getReaderPoolMisses() {
+        return readerPoolMisses.get();
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return getHeapUsage().getUsed();
+    }
+
+    @Override
+    public long getHeapMaxBytes() {
+        return getHeapUsage().getMax();
+    }
+
+    @Override
+    public void reset() {
+        startTime = System.nanoTime();
+        queriesCompleted.set(0);
+        queriesTimedOut.set(0);
+        for (int bucket = 0; bucket < RECENT_WINDOW_SECONDS; bucket++) {
+            recentCompletions.set(bucket, 0);
+        }
+        indexesBuilt.set(0);
+        documentsIndexed.set(0);
+        indexBuildMillis.set(0);
+        readerPoolHits.set(0);
+        readerPoolMisses.set(0);
+        prepareLatency.reset();
+        locateLatency.reset();
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - SECONDS_ORIGIN_NANOS);
+    }
+
+    private static long toNanos(double millis) {
+        return (long) (millis * 1e6);
+    }
+
+    private static MemoryUsage getHeapUsage() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    /**
+     * Kept in nanoseconds, so sub-millisecond latencies are not rounded away.
+     */
+    private static class LatencyStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private double getAverage() {
+            long currentCount = count.get();
+            return currentCount > 0 ? sumNanos.get() / 1e6 / currentCount : 0;
+        }
+
+        private double getMax() {
+            return maxNanos.get() / 1e6;
+        }
+
+        private void reset() {
+            count.set(0);
+            sumNanos.set(0);
+            maxNanos.set(0);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Live metrics of running benchmark suites, exposed via JMX as sfl_benchmark:type=SuiteMetrics.
+ */
+public interface SuiteMetricsMBean {
+    String getCurrentBenchmark();
+
+    long getQueriesCompleted();
+
+    long getQueriesTimedOut();
+
+    int getInFlightQueries();
+
+    double getQueriesPerSecond();
+
+    double getRecentQueriesPerSecond();
+
+    long getIndexesBuilt();
+
+    long getDocumentsIndexed();
+
+    double getIndexDocumentsPerSecond();
+
+    double getAveragePrepareMillis();
+
+    double getMaxPrepareMillis();
+
+    double getAverageLocateMillis();
+
+    double getMaxLocateMillis();
+
+    long getReaderPoolHits();
+
+    long getReaderPoolMisses();
+
+    long getHeapUsedBytes();
+
+    long getHeapMaxBytes();
+
+    void reset();
+}
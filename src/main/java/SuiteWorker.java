@@ -0,0 +1,154 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Worker process started by {@link SuiteCoordinator}. Claims tasks from the shared work directory,
+ * runs them with the technique deserialized from the work directory and publishes the results,
+ * until the coordinator signals that all results are collected.
+ * <p>
+ * Usage: SuiteWorker &lt;work directory&gt; &lt;worker id&gt;
+ */
+public class SuiteWorker {
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final File workDir;
+    private final File tasksDir;
+    private final File claimedDir;
+    private final File resultsDir;
+    private final String logTag;
+    private FeatureLocationTechnique technique;
+    private final Map<String, Benchmark> benchmarks = new HashMap<>();
+
+    private SuiteWorker(File workDir, String workerId) {
+        this.workDir = workDir;
+        this.tasksDir = new File(workDir, SuiteCoordinator.TASKS_FOLDER_NAME);
+        this.claimedDir = new File(new File(workDir, SuiteCoordinator.CLAIMED_FOLDER_NAME), workerId);
+        this.resultsDir = new File(workDir, SuiteCoordinator.RESULTS_FOLDER_NAME);
+        this.logTag = "Worker " + workerId;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: SuiteWorker <work directory> <worker id>");
+            System.exit(2);
+        }
+
+        SuiteWorker worker = new SuiteWorker(new File(args[0]), args[1]);
+        SuiteMetrics.register();
+        try {
+            worker.readTechnique();
+            worker.run();
+            worker.technique.dispose();
+        } catch (IOException e) {
+            Logger.debugLog(worker.logTag, "Failed: " + e.getMessage());
+            e.printStackTrace();
+            Logger.flush();
+            System.exit(1);
+        }
+        Logger.flush();
+    }
+
+    private void readTechnique() throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+                new File(workDir, SuiteCoordinator.TECHNIQUE_FILE_NAME)))) {
+            technique = (FeatureLocationTechnique) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read technique", e);
+        }
+    }
+
+    private void run() throws IOException {
+        while (!new File(workDir, SuiteCoordinator.DONE_FILE_NAME).exists()) {
+            File task = claimTask();
+            if (task == null) {
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            runTask(task);
+        }
+    }
+
+    /**
+     * @return the claimed task file or null if no task is available
+     */
+    private File claimTask() {
+        String[] taskNames = tasksDir.list((dir, name) -> name.endsWith(SuiteCoordinator.TASK_FILE_EXTENSION));
+        if (taskNames == null) {
+            return null;
+        }
+        Arrays.sort(taskNames);
+
+        for (String taskName : taskNames) {
+            File claimed = new File(claimedDir, taskName);
+            try {
+                Files.move(new File(tasksDir, taskName).toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return claimed;
+            } catch (IOException e) {
+                // Claimed by another worker in the meantime
+            }
+        }
+        return null;
+    }
+
+    private void runTask(File taskFile) throws IOException {
+        Properties task = new Properties();
+        try (FileInputStream in = new FileInputStream(taskFile)) {
+            task.load(in);
+        }
+
+        String benchmarkFolder = task.getProperty(SuiteCoordinator.BENCHMARK_FOLDER_PROPERTY);
+        Benchmark benchmark = benchmarks.get(benchmarkFolder);
+        if (benchmark == null) {
+            String resultFolder = task.getProperty(SuiteCoordinator.RESULT_FOLDER_PROPERTY);
+            benchmark = new Benchmark(technique, new File(benchmarkFolder),
+                    resultFolder != null ? new File(resultFolder) : null);
+            benchmark.setTimeouts(
+                    Long.parseLong(task.getProperty(SuiteCoordinator.PREPARE_TIMEOUT_PROPERTY)),
+                    Long.parseLong(task.getProperty(SuiteCoordinator.QUERY_TIMEOUT_PROPERTY)));
+            benchmarks.put(benchmarkFolder, benchmark);
+        }
+
+        int queryId = Integer.parseInt(task.getProperty(SuiteCoordinator.QUERY_ID_PROPERTY));
+        Logger.verboseLog(logTag, String.format("Running query %d of %s", queryId, benchmark.getName()));
+        QueryResult result = benchmark.runQuery(queryId);
+        if (result != null) {
+            // The coordinator records the result as well, this keeps the worker's own MBean current
+            SuiteMetrics.get().recordResult(result);
+        }
+
+        // Publish atomically, the coordinator must never read a partially written result
+        String taskName = taskFile.getName().substring(
+                0, taskFile.getName().length() - SuiteCoordinator.TASK_FILE_EXTENSION.length());
+        File tempFile = new File(resultsDir, taskName + SuiteCoordinator.TEMP_FILE_EXTENSION);
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+            out.writeObject(result);
+        }
+        Files.move(tempFile.toPath(), new File(resultsDir, taskName + SuiteCoordinator.RESULT_FILE_EXTENSION).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(taskFile.toPath());
+
+        if (benchmark.getTechnique() != technique) {
+            // The query abandoned the technique, continue with the copy for all benchmarks
+            technique = benchmark.getTechnique();
+            benchmarks.clear();
+            if (technique == null) {
+                throw new IOException("Technique was abandoned and could not be replaced");
+            }
+        }
+    }
+}
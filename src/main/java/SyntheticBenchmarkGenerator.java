@@ -0,0 +1,363 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes a synthetic benchmark folder (Queries, GoldSets, Sources/Source) for scalability tests.
+ * <p>
+ * The classes are built from a generated vocabulary whose word frequencies follow a Zipf
+ * distribution, like identifiers in real code. Each query has its own rare topic words that only
+ * occur in the classes of its gold set, so a working technique finds them at any corpus size.
+ * Output only depends on the settings and the seed. Classes are written one at a time, memory use
+ * does not grow with the number of classes.
+ * <p>
+ * Usage: SyntheticBenchmarkGenerator &lt;benchmark folder&gt; &lt;number of classes&gt; [seed]
+ */
+public class SyntheticBenchmarkGenerator {
+    private static final String ROOT_PACKAGE = "synthetic";
+    private static final String[] SYLLABLES = {
+            "ba", "ce", "di", "fo", "gu", "ha", "ke", "li", "mo", "nu", "pa", "re", "si", "to", "vu",
+            "wa", "ze", "bro", "cla", "dre", "fli", "gro", "kra", "ple", "sti", "tra", "ver", "mon", "lan", "der"
+    };
+    private static final Set<String> JAVA_KEYWORDS = new HashSet<>(Arrays.asList(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "double", "else", "enum", "extends", "final", "finally", "float", "goto",
+            "implements", "import", "instanceof", "interface", "long", "native", "package", "private",
+            "protected", "public", "return", "short", "static", "strictfp", "super", "switch",
+            "synchronized", "this", "throw", "throws", "transient", "void", "volatile", "while", "true",
+            "false", "null"));
+
+    private int classes = 1000;
+    private int methodsPerClass = 8;
+    private int statementsPerMethod = 6;
+    private int vocabularySize = 5000;
+    private double zipfExponent = 1.1;
+    private int packageDepth = 3;
+    private int classesPerPackage = 20;
+    private int queries = 20;
+    private int goldSetSize = 3;
+    private int topicWordsPerQuery = 3;
+    private long seed = 42;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: SyntheticBenchmarkGenerator <benchmark folder> <number of classes> [seed]");
+            System.exit(2);
+        }
+
+        SyntheticBenchmarkGenerator generator = new SyntheticBenchmarkGenerator()
+                .setClasses(Integer.parseInt(args[1]));
+        if (args.length > 2) {
+            generator.setSeed(Long.parseLong(args[2]));
+        }
+        try {
+            generator.generate(new File(args[0]));
+        } catch (IOException e) {
+            Logger.debugLog("Could not generate benchmark: " + e.getMessage());
+            e.printStackTrace();
+            Logger.flush();
+            System.exit(1);
+        }
+        Logger.flush();
+    }
+
+    /**
+     * @param classes number of classes, one per source file, default 1000
+     */
+    public SyntheticBenchmarkGenerator setClasses(int classes) {
+        this.classes = classes;
+        return this;
+    }
+
+    /**
+     * Size of the classes.
+     *
+     * @param methodsPerClass     methods per class, default 8
+     * @param statementsPerMethod statements per method, default 6
+     */
+    public SyntheticBenchmarkGenerator setClassSize(int methodsPerClass, int statementsPerMethod) {
+        this.methodsPerClass = methodsPerClass;
+        this.statementsPerMethod = statementsPerMethod;
+        return this;
+    }
+
+    /**
+     * Distribution of the identifier words: the word of rank r occurs with a frequency proportional
+     * to 1 / r^zipfExponent.
+     *
+     * @param vocabularySize number of distinct words, default 5000
+     * @param zipfExponent   skew of the distribution, default 1.1
+     */
+    public SyntheticBenchmarkGenerator setVocabulary(int vocabularySize, double zipfExponent) {
+        this.vocabularySize = vocabularySize;
+        this.zipfExponent = zipfExponent;
+        return this;
+    }
+
+    /**
+     * @param packageDepth      number of package name segments, default 3
+     * @param classesPerPackage classes in each package, default 20
+     */
+    public SyntheticBenchmarkGenerator setPackages(int packageDepth, int classesPerPackage) {
+        this.packageDepth = packageDepth;
+        this.classesPerPackage = classesPerPackage;
+        return this;
+    }
+
+    /**
+     * @param queries            number of queries, default 20
+     * @param goldSetSize        classes implementing each query, default 3
+     * @param topicWordsPerQuery rare words identifying each query, default 3
+     */
+    public SyntheticBenchmarkGenerator setQueries(int queries, int goldSetSize, int topicWordsPerQuery) {
+        this.queries = queries;
+        this.goldSetSize = goldSetSize;
+        this.topicWordsPerQuery = topicWordsPerQuery;
+        return this;
+    }
+
+    public SyntheticBenchmarkGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Writes the benchmark into the folder, which must not exist or be empty.
+     */
+    public void generate(File benchmarkFolder) throws IOException {
+        int topicWords = queries * topicWordsPerQuery;
+        if (vocabularySize <= topicWords) {
+            throw new IllegalArgumentException(String.format(
+                    "Vocabulary of %d words is too small for %d topic words", vocabularySize, topicWords));
+        }
+        if (goldSetSize > classes) {
+            throw new IllegalArgumentException("Gold sets cannot be larger than the number of classes");
+        }
+        String[] existing = benchmarkFolder.list();
+        if (existing != null && existing.length > 0) {
+            throw new IOException(benchmarkFolder + " is not empty");
+        }
+
+        Random random = new Random(seed);
+        String[] vocabulary = createVocabulary(random);
+        // The rarest words are reserved as topic words, they never occur by chance
+        ZipfSampler sampler = new ZipfSampler(vocabularySize - topicWords, zipfExponent);
+
+        // Gold set classes of each query and, inverted, the queries each class implements
+        Map<Integer, List<Integer>> queriesOfClass = new HashMap<>();
+        List<List<String>> goldSets = new ArrayList<>();
+        for (int query = 0; query < queries; query++) {
+            Set<Integer> goldSetClasses = new LinkedHashSet<>();
+            while (goldSetClasses.size() < goldSetSize) {
+                goldSetClasses.add(random.nextInt(classes));
+            }
+            List<String> goldSet = new ArrayList<>();
+            for (int classIndex : goldSetClasses) {
+                queriesOfClass.computeIfAbsent(classIndex, key -> new ArrayList<>()).add(query);
+                goldSet.add(getPackageName(classIndex, vocabulary) + "." + getClassName(classIndex, vocabulary));
+            }
+            goldSets.add(goldSet);
+        }
+
+        File sourceFolder = new File(benchmarkFolder, "Sources" + File.separator + "Source");
+        File queryFolder = new File(benchmarkFolder, "Queries");
+        File goldSetFolder = new File(benchmarkFolder, "GoldSets");
+        for (File folder : new File[]{sourceFolder, queryFolder, goldSetFolder}) {
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Could not create " + folder);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        for (int classIndex = 0; classIndex < classes; classIndex++) {
+            List<String> features = new ArrayList<>();
+            for (int query : queriesOfClass.getOrDefault(classIndex, Collections.emptyList())) {
+                features.addAll(getTopicWords(query, vocabulary));
+            }
+            writeClass(sourceFolder, classIndex, vocabulary, sampler, features,
+                    new Random(seed * 31 + classIndex));
+
+            if ((classIndex + 1) % 10000 == 0) {
+                int written = classIndex + 1;
+                Logger.verboseLog(() -> String.format("Generated %d of %d classes", written, classes));
+            }
+        }
+
+        for (int query = 0; query < queries; query++) {
+            // Numbered from 1 like the hand-curated benchmarks
+            writeFile(new File(queryFolder, "Query" + (query + 1) + ".txt"),
+                    createQuery(query, vocabulary, sampler, random));
+            writeFile(new File(goldSetFolder, "GoldSet" + (query + 1) + ".txt"),
+                    String.join("\n", goldSets.get(query)) + "\n");
+        }
+
+        Logger.debugLog(() -> String.format("Generated %d classes and %d queries in %s in %d ms",
+                classes, queries, benchmarkFolder, (System.nanoTime() - startTime) / 1_000_000));
+    }
+
+    /**
+     * @return distinct lower case words, ordered by rank
+     */
+    private String[] createVocabulary(Random random) {
+        Set<String> words = new LinkedHashSet<>();
+        int attempts = 0;
+        while (words.size() < vocabularySize) {
+            // Longer words once the short ones are used up
+            int syllables = 2 + random.nextInt(2) + attempts / (vocabularySize * 4);
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < syllables; i++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            if (!JAVA_KEYWORDS.contains(word.toString())) {
+                words.add(word.toString());
+            }
+            attempts++;
+        }
+        return words.toArray(new String[0]);
+    }
+
+    private List<String> getTopicWords(int query, String[] vocabulary) {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < topicWordsPerQuery; i++) {
+            words.add(vocabulary[vocabularySize - 1 - query * topicWordsPerQuery - i]);
+        }
+        return words;
+    }
+
+    private String getPackageName(int classIndex, String[] vocabulary) {
+        int packageIndex = classIndex / classesPerPackage;
+        Random random = new Random(seed ^ (packageIndex * 0x9E3779B97F4A7C15L));
+        StringBuilder packageName = new StringBuilder(ROOT_PACKAGE);
+        for (int i = 1; i < packageDepth; i++) {
+            // The last segment includes the index, so every package is distinct
+            packageName.append('.').append(vocabulary[random.nextInt(Math.min(vocabulary.length, 100))]);
+        }
+        return packageName.append(packageIndex).toString();
+    }
+
+    private String getClassName(int classIndex, String[] vocabulary) {
+        Random random = new Random(seed + classIndex);
+        return capitalize(vocabulary[random.nextInt(Math.min(vocabulary.length, 500))])
+                + capitalize(vocabulary[random.nextInt(Math.min(vocabulary.length, 500))])
+                + classIndex;
+    }
+
+    private void writeClass(File sourceFolder, int classIndex, String[] vocabulary, ZipfSampler sampler,
+                            List<String> features, Random random) throws IOException {
+        String packageName = getPackageName(classIndex, vocabulary);
+        String className = getClassName(classIndex, vocabulary);
+        File packageFolder = new File(sourceFolder, packageName.replace('.', File.separatorChar));
+        if (!packageFolder.isDirectory() && !packageFolder.mkdirs() && !packageFolder.isDirectory()) {
+            throw new IOException("Could not create " + packageFolder);
+        }
+
+        try (Writer out = Files.newBufferedWriter(new File(packageFolder, className + ".java").toPath(),
+                StandardCharsets.UTF_8)) {
+            out.write("package " + packageName + ";\n\n");
+            out.write("/**\n * " + words(vocabulary, sampler, random, 12) + "\n */\n");
+            out.write("public class " + className + " {\n");
+            for (int i = 0; i < 3; i++) {
+                out.write("    private int " + identifier(vocabulary, sampler, random) + ";\n");
+            }
+
+            for (int method = 0; method < methodsPerClass; method++) {
+                // Spread the feature words over the class, as in real feature implementations
+                String feature = !features.isEmpty() && method % 2 == 0
+                        ? features.get(random.nextInt(features.size())) : null;
+                out.write("\n    // " + words(vocabulary, sampler, random, 6)
+                        + (feature != null ? " " + feature : "") + "\n");
+                out.write("    public int " + identifier(vocabulary, sampler, random)
+                        + (feature != null ? capitalize(feature) : "")
+                        + "(int " + identifier(vocabulary, sampler, random) + ") {\n");
+                for (int statement = 0; statement < statementsPerMethod; statement++) {
+                    out.write("        int " + identifier(vocabulary, sampler, random) + " = "
+                            + identifier(vocabulary, sampler, random) + "("
+                            + identifier(vocabulary, sampler, random) + ");\n");
+                }
+                out.write("        return 0;\n    }\n");
+            }
+            out.write("}\n");
+        }
+    }
+
+    private String createQuery(int query, String[] vocabulary, ZipfSampler sampler, Random random) {
+        List<String> words = new ArrayList<>(getTopicWords(query, vocabulary));
+        // Some frequent words, like the unspecific part of a bug report
+        for (int i = 0; i < 4; i++) {
+            words.add(vocabulary[sampler.sample(random)]);
+        }
+        return "The " + String.join(" ", words) + " does not work as expected\n";
+    }
+
+    /**
+     * @return a camel case identifier of one to three words
+     */
+    private static String identifier(String[] vocabulary, ZipfSampler sampler, Random random) {
+        int numWords = 1 + random.nextInt(3);
+        StringBuilder identifier = new StringBuilder();
+        for (int i = 0; i < numWords; i++) {
+            String word = vocabulary[sampler.sample(random)];
+            identifier.append(i == 0 ? word : capitalize(word));
+        }
+        return identifier.toString();
+    }
+
+    private static String words(String[] vocabulary, ZipfSampler sampler, Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(vocabulary[sampler.sample(random)]);
+        }
+        return words.toString();
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write(contents);
+        }
+    }
+
+    /**
+     * Samples ranks 0..size-1 with probability proportional to 1 / (rank + 1)^exponent.
+     */
+    private static class ZipfSampler {
+        private final double[] cumulative;
+
+        private ZipfSampler(int size, double exponent) {
+            cumulative = new double[size];
+            double sum = 0;
+            for (int rank = 0; rank < size; rank++) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < size; rank++) {
+                cumulative[rank] /= sum;
+            }
+        }
+
+        private int sample(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            int rank = index >= 0 ? index : -index - 1;
+            return Math.min(rank, cumulative.length - 1);
+        }
+    }
+}
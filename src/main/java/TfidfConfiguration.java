@@ -1,8 +1,26 @@
-public class TfidfConfiguration {
+import org.apache.lucene.index.IndexWriterConfig;
+
+import java.io.Serializable;
+
+public class TfidfConfiguration implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private String stopWordFile = null;
     private boolean removeDuplicateQueryTerms = false;
     private float scoreCutoff = -1;
+    private int maxResults = -1;
+    private int ingestBufferSize = 8192;
+    private String tokenCacheDir = null;
+    private double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private int maxBufferedDocs = IndexWriterConfig.DEFAULT_MAX_BUFFERED_DOCS;
+    private boolean useCompoundFile = IndexWriterConfig.DEFAULT_USE_COMPOUND_FILE_SYSTEM;
+    private double segmentsPerTier = 10;
+    private boolean forceMerge = false;
+    private boolean rebuildIndexes = false;
+    private int parsedQueryCacheSize = 128;
+    private int resultCacheSize = 0;
+    private int readerPoolSize = 4;
+    private long readerPoolMemoryBudget = -1;
 
     public String getStopWordFile() {
         return stopWordFile;
@@ -30,4 +48,203 @@ public class TfidfConfiguration {
         this.scoreCutoff = scoreCutoff;
         return this;
     }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * @param maxResults only the maxResults best scored classes are returned, non-positive for all (default)
+     */
+    public TfidfConfiguration setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    public int getIngestBufferSize() {
+        return ingestBufferSize;
+    }
+
+    /**
+     * Source files are streamed into the index, this is the size of the read buffers and thereby
+     * bounds the memory needed per file.
+     *
+     * @param ingestBufferSize buffer size in bytes and characters, default 8192
+     */
+    public TfidfConfiguration setIngestBufferSize(int ingestBufferSize) {
+        this.ingestBufferSize = ingestBufferSize;
+        return this;
+    }
+
+    public String getTokenCacheDir() {
+        return tokenCacheDir;
+    }
+
+    /**
+     * Keeps the preprocessed source files in a cache folder that can be shared by all techniques,
+     * configurations and runs, see {@link TokenCache}.
+     *
+     * @param tokenCacheDir cache folder, null to always read the source files (default)
+     */
+    public TfidfConfiguration setTokenCacheDir(String tokenCacheDir) {
+        this.tokenCacheDir = tokenCacheDir;
+        return this;
+    }
+
+    public double getRamBufferSizeMB() {
+        return ramBufferSizeMB;
+    }
+
+    /**
+     * @param ramBufferSizeMB memory used to buffer documents before a segment is written, or
+     *                        IndexWriterConfig.DISABLE_AUTO_FLUSH to only flush by document count,
+     *                        which requires {@link #setMaxBufferedDocs(int)}
+     */
+    public TfidfConfiguration setRamBufferSizeMB(double ramBufferSizeMB) {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+        return this;
+    }
+
+    public int getMaxBufferedDocs() {
+        return maxBufferedDocs;
+    }
+
+    /**
+     * @param maxBufferedDocs number of documents buffered before a segment is written, or
+     *                        IndexWriterConfig.DISABLE_AUTO_FLUSH (default) to only flush by memory
+     */
+    public TfidfConfiguration setMaxBufferedDocs(int maxBufferedDocs) {
+        this.maxBufferedDocs = maxBufferedDocs;
+        return this;
+    }
+
+    public boolean isUseCompoundFile() {
+        return useCompoundFile;
+    }
+
+    /**
+     * @param useCompoundFile pack the files of small segments into a single file (default), fewer
+     *                        open files but slightly slower to build
+     */
+    public TfidfConfiguration setUseCompoundFile(boolean useCompoundFile) {
+        this.useCompoundFile = useCompoundFile;
+        return this;
+    }
+
+    public double getSegmentsPerTier() {
+        return segmentsPerTier;
+    }
+
+    /**
+     * @param segmentsPerTier segments allowed per tier of the merge policy before they are merged,
+     *                        lower values merge more while building, at least 2 (default 10)
+     * @throws IllegalArgumentException if segmentsPerTier is less than 2
+     */
+    public TfidfConfiguration setSegmentsPerTier(double segmentsPerTier) {
+        checkSegmentsPerTier(segmentsPerTier);
+        this.segmentsPerTier = segmentsPerTier;
+        return this;
+    }
+
+    public boolean isForceMerge() {
+        return forceMerge;
+    }
+
+    /**
+     * @param forceMerge merge each newly built index into a single segment, which costs build
+     *                   time but makes searching the read-only index faster
+     */
+    public TfidfConfiguration setForceMerge(boolean forceMerge) {
+        this.forceMerge = forceMerge;
+        return this;
+    }
+
+    public boolean isRebuildIndexes() {
+        return rebuildIndexes;
+    }
+
+    /**
+     * Builds the index of each codebase again the first time the technique prepares it, even if an
+     * index exists, and reuses it afterwards. Every run then builds its indexes for the same queries,
+     * so the build times of two runs can be compared, see {@link PerformanceGate}.
+     *
+     * @param rebuildIndexes true to replace existing indexes once per technique instance (default false)
+     */
+    public TfidfConfiguration setRebuildIndexes(boolean rebuildIndexes) {
+        this.rebuildIndexes = rebuildIndexes;
+        return this;
+    }
+
+    public int getParsedQueryCacheSize() {
+        return parsedQueryCacheSize;
+    }
+
+    /**
+     * @param parsedQueryCacheSize number of parsed queries kept for reuse, 0 disables the cache
+     */
+    public TfidfConfiguration setParsedQueryCacheSize(int parsedQueryCacheSize) {
+        this.parsedQueryCacheSize = parsedQueryCacheSize;
+        return this;
+    }
+
+    public int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    /**
+     * Caches the results of the last resultCacheSize queries per index. Useful for suites that run
+     * the same query against several versions sharing the same source folder.
+     *
+     * @param resultCacheSize number of cached results, 0 disables the cache (default)
+     */
+    public TfidfConfiguration setResultCacheSize(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+        return this;
+    }
+
+    public int getReaderPoolSize() {
+        return readerPoolSize;
+    }
+
+    /**
+     * @param readerPoolSize number of indexes kept open between queries, 0 closes every index after its query
+     */
+    public TfidfConfiguration setReaderPoolSize(int readerPoolSize) {
+        this.readerPoolSize = readerPoolSize;
+        return this;
+    }
+
+    public long getReaderPoolMemoryBudget() {
+        return readerPoolMemoryBudget;
+    }
+
+    /**
+     * @param readerPoolMemoryBudget maximum summed size in bytes of the indexes kept open, negative for no limit (default)
+     */
+    public TfidfConfiguration setReaderPoolMemoryBudget(long readerPoolMemoryBudget) {
+        this.readerPoolMemoryBudget = readerPoolMemoryBudget;
+        return this;
+    }
+
+    /**
+     * Checks settings that can only be validated together, since the setters may be called in any order.
+     *
+     * @throws IllegalArgumentException if the configuration cannot be used to build an index
+     */
+    void validate() {
+        if (ramBufferSizeMB == IndexWriterConfig.DISABLE_AUTO_FLUSH
+                && maxBufferedDocs == IndexWriterConfig.DISABLE_AUTO_FLUSH) {
+            throw new IllegalArgumentException("ramBufferSizeMB and maxBufferedDocs are both disabled, " +
+                    "enable at least one of them so the index writer can flush");
+        }
+        // Also checked here, since a deserialized configuration bypasses the setter
+        checkSegmentsPerTier(segmentsPerTier);
+    }
+
+    private static void checkSegmentsPerTier(double segmentsPerTier) {
+        // TieredMergePolicy only rejects this when the index writer is created
+        if (!(segmentsPerTier >= 2)) {
+            throw new IllegalArgumentException("segmentsPerTier must be at least 2, was " + segmentsPerTier);
+        }
+    }
 }
@@ -1,57 +1,104 @@
-import com.ibm.icu.text.CharsetDetector;
-
 import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.StopFilterFactory;
-import org.apache.lucene.analysis.custom.CustomAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.StringHelper;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Stream;
+import java.util.UUID;
+
+public class TfidfFeatureLocation implements FeatureLocationTechnique, Serializable {
+    private static final long serialVersionUID = 1L;
 
-public class TfidfFeatureLocation implements FeatureLocationTechnique {
     private static final String CONTENTS_FIELD = "contents";
     private static final String PATH_FIELD = "path";
     private static final String INDEX_DIR = "lucene_index_tfidf";
+    private static final String BUILD_LOCK_EXTENSION = ".building";
+    private static final long STALE_BUILD_MIN_AGE_MILLIS = 60_000;
+
+    static {
+        BooleanQuery.setMaxClauseCount(Integer.MAX_VALUE);
+    }
 
-    private Directory indexDir;
-    private Analyzer englishAnalyzer;
-    private Analyzer javaAnalyzer;
-    private File searchDir;
-    private IndexSearcher indexSearcher;
+    // Only the configuration is serialized, everything else is state of the running process
     private TfidfConfiguration config;
+    private transient DefaultSimilarity similarity;
+    private transient Directory indexDir;
+    private transient Analyzer analyzer;
+    private transient QueryParser queryParser;
+    private transient File searchDir;
+    private transient IndexSearcher indexSearcher;
+    // Id of the commit opened by indexSearcher, read on first use
+    private transient String searcherCommitId;
+    private transient volatile boolean cancelled;
+    private transient Counter cancellationClock;
+    private transient TokenCache tokenCache;
+    private transient Map<String, Query> parsedQueryCache;
+    private transient Map<String, Set<SearchResult>> resultCache;
+    private transient IndexReaderPool readerPool;
+    private transient IndexBuildStats lastBuildStats;
+    // Codebases whose index was rebuilt by this instance, see TfidfConfiguration#setRebuildIndexes
+    private transient Set<String> rebuiltCodebases;
 
     TfidfFeatureLocation(TfidfConfiguration config) {
+        config.validate();
         this.config = config;
+        init();
+    }
+
+    private void init() {
+        this.similarity = new DefaultSimilarity();
+        this.tokenCache = config.getTokenCacheDir() != null ? new TokenCache(new File(config.getTokenCacheDir())) : null;
+        this.parsedQueryCache = new LruCache<>(config.getParsedQueryCacheSize());
+        this.resultCache = new LruCache<>(config.getResultCacheSize());
+        this.readerPool = new IndexReaderPool(config.getReaderPoolSize(), config.getReaderPoolMemoryBudget());
+        this.cancellationClock = new CancellationClock();
+        this.rebuiltCodebases = new HashSet<>();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
     }
 
     @Override
@@ -62,79 +109,233 @@ public class TfidfFeatureLocation implements FeatureLocationTechnique {
     @Override
     public void prepareCodebase(File codeBase) throws IOException {
         this.searchDir = codeBase;
+        this.cancelled = false;
+        this.lastBuildStats = null;
 
-        // If index already exists, do not overwrite
+        // If index already exists, do not overwrite, unless it is rebuilt once per instance
         File indexFolderFile = new File(codeBase.getPath() + File.separator + INDEX_DIR);
-        if (indexFolderFile.exists() && indexFolderFile.isDirectory()) {
-            indexDir = FSDirectory.open(Paths.get(codeBase.getPath() + File.separator + INDEX_DIR));
+        Path indexPath = indexFolderFile.toPath();
+        boolean rebuild = config.isRebuildIndexes() && rebuiltCodebases.add(codeBase.getCanonicalPath());
+        if (!rebuild && indexFolderFile.exists() && indexFolderFile.isDirectory()) {
             configureAnalyzers();
-            DirectoryReader iReader = DirectoryReader.open(indexDir);
-            indexSearcher = new IndexSearcher(iReader);
+            openSearcher(indexPath);
             return;
         }
 
-        indexDir = FSDirectory.open(Paths.get(codeBase.getPath() + File.separator + INDEX_DIR));
+        // Build into a temporary folder and move it into place when complete, so other processes
+        // running on the same codebase never see a partial index. The folder is locked while it is
+        // built, so folders left behind by crashed or killed builds can be told apart and removed.
+        config.validate();
+        deleteStaleIndexFolders(indexFolderFile);
+        File tempIndexFolder = new File(indexFolderFile.getPath() + "_" + UUID.randomUUID());
+        Path buildLockPath = Paths.get(tempIndexFolder.getPath() + BUILD_LOCK_EXTENSION);
+        try (FileChannel buildLockChannel = FileChannel.open(buildLockPath,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            FileLock buildLock = buildLockChannel.lock();
+            try {
+                buildIndex(codeBase, tempIndexFolder);
+                if (rebuild) {
+                    discardIndex(indexFolderFile);
+                }
+                moveIndexIntoPlace(codeBase, tempIndexFolder.toPath(), indexPath);
+            } finally {
+                buildLock.release();
+            }
+        } finally {
+            Files.deleteIfExists(buildLockPath);
+        }
+
+        readerPool.invalidate(indexPath);
+        openSearcher(indexPath);
+    }
+
+    private void buildIndex(File codeBase, File tempIndexFolder) throws IOException {
+        indexDir = FSDirectory.open(tempIndexFolder.toPath());
         configureAnalyzers();
 
-        IndexWriterConfig irconfig = new IndexWriterConfig(javaAnalyzer);
-        irconfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-        irconfig.setSimilarity(new DefaultSimilarity());
-        IndexWriter indexWriter = new IndexWriter(indexDir, irconfig);
+        IndexWriter indexWriter = null;
+        try {
+            indexWriter = new IndexWriter(indexDir, createIndexWriterConfig());
+            writeIndex(codeBase, indexWriter);
+        } catch (IOException | RuntimeException e) {
+            if (indexWriter != null) {
+                indexWriter.rollback();
+            }
+            indexDir.close();
+            FileUtils.deleteDirectory(tempIndexFolder);
+            throw e;
+        }
+    }
 
+    private void writeIndex(File codeBase, IndexWriter indexWriter) throws IOException {
+        long startTime = System.nanoTime();
+        int documents = 0;
         Collection<File> files = getFiles();
         for (File file : files) {
+            if (cancelled) {
+                throw new InterruptedIOException("Indexing of " + codeBase + " was cancelled");
+            }
             Document fileDoc = new Document();
             String path = file.getCanonicalPath();
             fileDoc.add(new StringField(PATH_FIELD, path, StringField.Store.YES));
-            Charset fileCharset = detectCharSet(file);
-            if (fileCharset == null) {
-                Logger.debugLog(getId(), String.format("Could not find charset for file %s", file));
-                return;
+            try (Reader contents = SourceAnalysis.openPreprocessedReader(file, config.getIngestBufferSize(), tokenCache)) {
+                if (contents == null) {
+                    Logger.debugLog(getId(), () -> String.format("Could not find charset for file %s", file));
+                    continue;
+                }
+                // The reader is consumed while the document is added, the file is never fully in memory
+                fileDoc.add(new TextField(CONTENTS_FIELD, contents));
+                indexWriter.addDocument(fileDoc);
+                documents++;
             }
-            String contents = String.join(" ", Files.readAllLines(Paths.get(file.getPath()), fileCharset));
-            String filteredContents = preprocessText(contents);
-            fileDoc.add(new TextField(CONTENTS_FIELD, filteredContents, Field.Store.NO));
-            indexWriter.addDocument(fileDoc);
 
         }
 
+        indexWriter.commit();
+        long indexedTime = System.nanoTime();
+        if (cancelled) {
+            // Merging cannot be interrupted and takes long for large indexes
+            throw new InterruptedIOException("Indexing of " + codeBase + " was cancelled");
+        }
+        if (config.isForceMerge()) {
+            // The index is only read afterwards, a single segment is fastest to search
+            indexWriter.forceMerge(1);
+        }
         indexWriter.close();
+        long mergedTime = System.nanoTime();
+
+        lastBuildStats = new IndexBuildStats(documents,
+                (indexedTime - startTime) / 1_000_000, (mergedTime - indexedTime) / 1_000_000,
+                SegmentInfos.readLatestCommit(indexDir).size(), IndexBuildStats.sizeOf(indexDir));
+        indexDir.close();
+        Logger.debugLog(getId(), () -> "Built index for " + codeBase + ": " + lastBuildStats);
+        if (tokenCache != null) {
+            Logger.verboseLog(getId(), tokenCache::toString);
+        }
+    }
+
+    private void moveIndexIntoPlace(File codeBase, Path tempIndexPath, Path indexPath) throws IOException {
+        try {
+            Files.move(tempIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            FileUtils.deleteDirectory(tempIndexPath.toFile());
+            // Renaming onto a non-empty folder fails with a plain FileSystemException on Linux
+            if (!(e instanceof FileSystemException) || !Files.isDirectory(indexPath)) {
+                throw e;
+            }
+            // Another process finished the same index first, use that one
+            Logger.debugLog(getId(), "Index for " + codeBase + " was built concurrently, discarding own copy");
+        }
+    }
 
-        DirectoryReader iReader = DirectoryReader.open(indexDir);
-        indexSearcher = new IndexSearcher(iReader);
+    /**
+     * Moves the existing index out of the way of the rebuilt one and deletes it. If it is still
+     * open and cannot be deleted, it is removed later like a stale temporary folder.
+     */
+    private void discardIndex(File indexFolderFile) throws IOException {
+        if (!indexFolderFile.isDirectory()) {
+            return;
+        }
+        File discardedFolder = new File(indexFolderFile.getPath() + "_" + UUID.randomUUID());
+        Files.move(indexFolderFile.toPath(), discardedFolder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.deleteQuietly(discardedFolder);
+    }
+
+    /**
+     * Deletes temporary index folders next to the index whose build lock is not held, i.e. whose
+     * build crashed or was killed before it could clean up. Builds create the lock before the
+     * folder and delete it after the folder, entries younger than a minute are left alone so a
+     * build that has not locked yet is never mistaken for a stale one.
+     */
+    private void deleteStaleIndexFolders(File indexFolderFile) {
+        String prefix = indexFolderFile.getName() + "_";
+        String[] names = indexFolderFile.getParentFile().list((dir, name) -> name.startsWith(prefix));
+        if (names == null) {
+            return;
+        }
+
+        Set<String> tempIndexFolders = new HashSet<>();
+        for (String name : names) {
+            tempIndexFolders.add(name.endsWith(BUILD_LOCK_EXTENSION)
+                    ? name.substring(0, name.length() - BUILD_LOCK_EXTENSION.length()) : name);
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_BUILD_MIN_AGE_MILLIS;
+        for (String name : tempIndexFolders) {
+            File tempIndexFolder = new File(indexFolderFile.getParentFile(), name);
+            File buildLockFile = new File(tempIndexFolder.getPath() + BUILD_LOCK_EXTENSION);
+            try {
+                if (!buildLockFile.exists()) {
+                    if (tempIndexFolder.lastModified() < staleBefore) {
+                        Logger.debugLog(getId(), "Deleting stale index folder " + tempIndexFolder);
+                        FileUtils.deleteDirectory(tempIndexFolder);
+                    }
+                    continue;
+                }
+                if (buildLockFile.lastModified() >= staleBefore) {
+                    continue;
+                }
+                try (FileChannel buildLockChannel = FileChannel.open(buildLockFile.toPath(), StandardOpenOption.WRITE);
+                     FileLock lock = buildLockChannel.tryLock()) {
+                    if (lock == null) {
+                        continue;
+                    }
+                    Logger.debugLog(getId(), "Deleting stale index folder " + tempIndexFolder);
+                    FileUtils.deleteDirectory(tempIndexFolder);
+                }
+                Files.deleteIfExists(buildLockFile.toPath());
+            } catch (OverlappingFileLockException e) {
+                // Built by this process right now
+            } catch (IOException e) {
+                Logger.debugLog(getId(), "Could not delete stale index folder " + tempIndexFolder);
+                e.printStackTrace();
+            }
+        }
     }
 
     @Override
     public Set<SearchResult> locate(String feature) {
-        String queryString = preprocessText(feature);
+        String queryString = SourceAnalysis.preprocessText(feature);
         Set<SearchResult> resultList = new HashSet<>();
         try {
-            indexSearcher.setSimilarity(new DefaultSimilarity());
-
-            BooleanQuery.setMaxClauseCount(Integer.MAX_VALUE);
-            QueryParser parser = new QueryParser(CONTENTS_FIELD, englishAnalyzer);
-            Logger.verboseLog(getId(), String.format("Searching for:\n%s\n", queryString));
-            Query query = parser.parse(queryString);
-
-            if (config.isRemoveDuplicateQueryTerms()) {
-                if (query instanceof BooleanQuery) {
-                    removeDuplicateQueryTerms((BooleanQuery) query);
-                } else {
-                    Logger.debugLog(getId(), "Error, not a boolean query");
+            Logger.verboseLog(getId(), () -> String.format("Searching for:\n%s\n", queryString));
+
+            // Upper case AND, OR and NOT are operators of the query parser, so the query is not normalized
+            String trimmedQuery = queryString.trim();
+            String resultCacheKey = null;
+            if (config.getResultCacheSize() > 0) {
+                resultCacheKey = getResultCacheKey(trimmedQuery);
+                Set<SearchResult> cachedResults = resultCache.get(resultCacheKey);
+                if (cachedResults != null) {
+                    Logger.verboseLog(getId(), "Using cached results");
+                    return new HashSet<>(cachedResults);
                 }
             }
 
+            Query query = parseQuery(trimmedQuery);
+            if (cancelled) {
+                return resultList;
+            }
 
-            // Get total hits first
-            TotalHitCountCollector totalHitCountCollector = new TotalHitCountCollector();
-            indexSearcher.search(query, totalHitCountCollector);
+            int numHits = config.getMaxResults();
+            if (numHits <= 0) {
+                // Get total hits first
+                TotalHitCountCollector totalHitCountCollector = new TotalHitCountCollector();
+                search(query, totalHitCountCollector);
+                numHits = totalHitCountCollector.getTotalHits() + 1;
+            }
 
 
             // Get all hits with the help w/ the previously acquired total hit count
-            TopDocs hits = indexSearcher.search(query, totalHitCountCollector.getTotalHits() + 1);
+            TopScoreDocCollector topDocsCollector = TopScoreDocCollector.create(numHits);
+            search(query, topDocsCollector);
+            TopDocs hits = topDocsCollector.topDocs();
 
             for (ScoreDoc doc : hits.scoreDocs) {
-                String className = parseClassName(doc);
+                if (cancelled) {
+                    break;
+                }
+                String path = indexSearcher.doc(doc.doc).getField(PATH_FIELD).stringValue();
+                String className = SourceAnalysis.getClassName(new File(path));
                 if (className != null) {
                     if (config.getScoreCutoff() < 0 || doc.score >= config.getScoreCutoff()) {
                         resultList.add(new SearchResult(className, doc.score));
@@ -142,6 +343,12 @@ public class TfidfFeatureLocation implements FeatureLocationTechnique {
                 }
             }
 
+            if (resultCacheKey != null && !cancelled) {
+                resultCache.put(resultCacheKey, new HashSet<>(resultList));
+            }
+
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            Logger.debugLog(this.getId(), "Search was cancelled");
         } catch (IOException e) {
             Logger.debugLog(this.getId(), "Could not open index for searching");
         } catch (ParseException e) {
@@ -152,127 +359,160 @@ public class TfidfFeatureLocation implements FeatureLocationTechnique {
         return resultList;
     }
 
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
     @Override
     public void teardown() {
         try {
-            indexDir.close();
-            indexSearcher.getIndexReader().close();
+            releaseSearcher();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void configureAnalyzers() throws IOException {
-        CustomAnalyzer.Builder analyzerBuilder = CustomAnalyzer.builder(Paths.get(System.getProperty("user.dir")))
-                .withTokenizer("standard")
-                .addTokenFilter("lowercase");
-
-        if (config.getStopWordFile() != null) {
-            analyzerBuilder.addTokenFilter("stop",
-                    "ignoreCase", "true",
-                    "words", config.getStopWordFile(),
-                    "format", StopFilterFactory.FORMAT_WORDSET);
+    @Override
+    public void dispose() {
+        try {
+            releaseSearcher();
+            readerPool.clear();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        Logger.debugLog(getId(), () -> "Closed reader pool, " + readerPool);
+    }
 
-        analyzerBuilder.addTokenFilter("porterstem");
-
-        this.javaAnalyzer = analyzerBuilder.build();
-        this.englishAnalyzer = analyzerBuilder.build();
+    @Override
+    public IndexBuildStats getLastBuildStats() {
+        return lastBuildStats;
     }
 
-    private Collection<File> getFiles() {
-        return FileUtils.listFiles(searchDir, new String[]{"java"}, true);
+    private IndexWriterConfig createIndexWriterConfig() {
+        IndexWriterConfig irconfig = new IndexWriterConfig(analyzer);
+        irconfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        irconfig.setSimilarity(similarity);
+        // Lucene rejects disabling one flush trigger while the other one is disabled, so the enabled one goes first
+        if (config.getRamBufferSizeMB() == IndexWriterConfig.DISABLE_AUTO_FLUSH) {
+            irconfig.setMaxBufferedDocs(config.getMaxBufferedDocs());
+            irconfig.setRAMBufferSizeMB(config.getRamBufferSizeMB());
+        } else {
+            irconfig.setRAMBufferSizeMB(config.getRamBufferSizeMB());
+            irconfig.setMaxBufferedDocs(config.getMaxBufferedDocs());
+        }
+        irconfig.setUseCompoundFile(config.isUseCompoundFile());
+
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(config.getSegmentsPerTier());
+        if (!config.isUseCompoundFile()) {
+            mergePolicy.setNoCFSRatio(0);
+        }
+        irconfig.setMergePolicy(mergePolicy);
+        return irconfig;
     }
 
     /**
-     * Replace all non-alphanumerical characters with whitespace
-     *
-     * @return String containing only alphanumerical characters
+     * Runs the search through a {@link TimeLimitingCollector} whose clock only advances once
+     * {@link #cancel()} was called, so a cancelled search stops at the next collected document
+     * instead of scoring the rest of the index.
      */
-    private String preprocessText(String text) {
-        String tmp = text.replaceAll("\\W", " ");
-        tmp = tmp.replaceAll(String.format("%s|%s|%s", //Camel Case splitter
-                "(?<=[A-Z])(?=[A-Z][a-z])",
-                "(?<=[^A-Z])(?=[A-Z])",
-                "(?<=[A-Za-z])(?=[^A-Za-z])"), " ");
-        tmp = tmp.replaceAll("\\s+", " ");
-
-        return tmp;
+    private void search(Query query, Collector collector) throws IOException {
+        TimeLimitingCollector cancellableCollector = new TimeLimitingCollector(collector, cancellationClock, 0);
+        cancellableCollector.setBaseline(0);
+        indexSearcher.search(query, cancellableCollector);
     }
 
-    private void removeDuplicateQueryTerms(BooleanQuery query) {
-        Set<BooleanClause> clauseSet = new HashSet<>(query.clauses());
-        query.clauses().clear();
-        query.clauses().addAll(clauseSet);
+    private void openSearcher(Path indexPath) throws IOException {
+        // prepareCodebase may be called again without teardown, the previous reference must not leak
+        releaseSearcher();
+        indexSearcher = readerPool.acquire(indexPath);
+        searcherCommitId = null;
+        indexSearcher.setSimilarity(similarity);
     }
 
-    private String parseClassName(ScoreDoc document) {
-        try {
-            String className;
-            AtomicReference<String> packageName = new AtomicReference<>(null);
-            String path = indexSearcher.doc(document.doc).getField(PATH_FIELD).stringValue();
-            File sourceFile = new File(path);
-
-            String[] splits = sourceFile.getName().split("\\.");
-            className = String.join(".", Arrays.copyOfRange(
-                    splits, 0, splits.length - 1));
-
-            Charset fileCharset = detectCharSet(sourceFile);
-            if (fileCharset == null) {
-                Logger.debugLog(getId(), "Could not find Charset for file " + sourceFile);
-                return null;
-            }
-            try (Stream<String> stream = Files.lines(Paths.get(sourceFile.getPath()), fileCharset)) {
-                AtomicBoolean continued = new AtomicBoolean(false);
-                try {
-                    stream.forEach(line -> {
-                        String trimmed = line.trim();
-                        if (trimmed.startsWith("package") && packageName.get() == null) {
-                            // Remove package tag
-                            trimmed = trimmed.substring("package".length(), trimmed.length());
-
-                            packageName.set(trimmed);
-
-                            if (!line.contains(";")) {
-                                continued.set(true);
-                            }
-                        } else if (continued.get()) {
-                            if (line.contains(";")) {
-                                continued.set(false);
-                                packageName.set(packageName.get() + "." + trimmed);
-                            }
-                            packageName.set(packageName.get() + line.trim());
-                        }
-                    });
-                } catch (UncheckedIOException e) {
-                    Logger.debugLog(this.getId(), String.format("Error reading file %s", sourceFile));
-                }
-            }
+    private void releaseSearcher() throws IOException {
+        if (indexSearcher != null) {
+            IndexSearcher searcher = indexSearcher;
+            indexSearcher = null;
+            readerPool.release(searcher);
+        }
+    }
 
+    /**
+     * Parses the query or copies the cached query if the same query was parsed before, so the
+     * cached instance is never handed out.
+     */
+    private Query parseQuery(String queryString) throws ParseException {
+        Query query = parsedQueryCache.get(queryString);
+        if (query != null) {
+            return query.clone();
+        }
 
-            if (packageName.get() != null && className != null) {
-                // Remove semicolon(s) and whitespaces
-                packageName.set(packageName.get().replaceAll(";", "").replaceAll("\\s", ""));
+        if (queryParser == null) {
+            queryParser = new QueryParser(CONTENTS_FIELD, analyzer);
+        }
+        query = queryParser.parse(queryString);
 
-                return packageName + "." + className;
+        if (config.isRemoveDuplicateQueryTerms()) {
+            if (query instanceof BooleanQuery) {
+                removeDuplicateQueryTerms((BooleanQuery) query);
+            } else {
+                Logger.debugLog(getId(), "Error, not a boolean query");
             }
-        } catch (IOException e) {
-            Logger.debugLog(this.getId(), "Could not get path from search result");
-            e.printStackTrace();
         }
 
-        return null;
+        if (config.getParsedQueryCacheSize() > 0) {
+            parsedQueryCache.put(queryString, query);
+            return query.clone();
+        }
+        return query;
     }
 
-    private Charset detectCharSet(File file) {
-        try {
-            CharsetDetector detector = new CharsetDetector();
-            detector.setText(Files.readAllBytes(Paths.get(file.getPath())));
-            return Charset.forName(detector.detect().getName());
-        } catch (IllegalArgumentException | IOException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Results are only valid for the index they were computed on, so the key contains the index
+     * location and the id of its commit in addition to the query. Unlike the version or
+     * generation, the id is random and differs for every rebuilt index.
+     */
+    private String getResultCacheKey(String queryString) throws IOException {
+        if (searcherCommitId == null) {
+            DirectoryReader reader = (DirectoryReader) indexSearcher.getIndexReader();
+            SegmentInfos commit = SegmentInfos.readCommit(reader.directory(),
+                    reader.getIndexCommit().getSegmentsFileName());
+            searcherCommitId = StringHelper.idToString(commit.getId());
         }
+        return searchDir.getAbsolutePath() + "@" + searcherCommitId + ":" + queryString;
+    }
+
+    private void configureAnalyzers() throws IOException {
+        if (analyzer == null) {
+            analyzer = SourceAnalysis.getAnalyzer(config.getStopWordFile());
+        }
+    }
+
+    private Collection<File> getFiles() {
+        return FileUtils.listFiles(searchDir, new String[]{"java"}, true);
+    }
+
+    private void removeDuplicateQueryTerms(BooleanQuery query) {
+        Set<BooleanClause> clauseSet = new HashSet<>(query.clauses());
+        query.clauses().clear();
+        query.clauses().addAll(clauseSet);
     }
 
+    /**
+     * Clock of the collectors, one tick after the running call was cancelled and zero before.
+     */
+    private class CancellationClock extends Counter {
+        // The clock is only read, cancel() is what advances it
+        @Override
+        public long addAndGet(long delta) {
+            return get();
+        }
+
+        @Override
+        public long get() {
+            return cancelled ? 1 : 0;
+        }
+    }
 }
@@ -0,0 +1,531 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Persistent cache of preprocessed source files, see {@link SourceAnalysis#openPreprocessedReader(File, int)}.
+ * Decoding and splitting a file is done once, afterwards every technique and configuration reads
+ * the split words from the cache. Stop words and stemming are applied by the analyzers as before,
+ * so one cache serves all configurations.
+ * <p>
+ * Entries are keyed by the SHA-1 of the file contents and {@link IdentifierSplittingReader#VERSION},
+ * so changed files and preprocessing changes never hit stale entries. To avoid reading the whole
+ * file for the hash on every lookup, the hash is remembered together with the size and modification
+ * time of the file in {@value #STAMPS_FOLDER_NAME}; it is only computed again when either changed.
+ * Files modified within the last {@value #RACY_MARGIN_MILLIS} ms are not stamped, since they could
+ * still change without a visible change of the modification time. Each entry stores the word
+ * sequence as variable length dictionary ids, followed by the distinct words of the file:
+ * <pre>
+ * int magic, int format version, int preprocessing version, byte status, long dictionary position
+ * varint word id per token
+ * varint tokens, varint words, (varint length, ASCII bytes) per word
+ * </pre>
+ * The ids are streamed to the entry while the file is split and the dictionary is appended at the
+ * end, so only the distinct words are held in memory; files with more than
+ * {@value #MAX_DICTIONARY_WORDS} distinct words are not cached. Entries are written to a temporary
+ * file and moved into place, so several processes can share a cache folder. Large entries are
+ * memory mapped when read and unmapped when their reader is closed. Entries that turn out to be
+ * corrupt are deleted and rewritten.
+ * <p>
+ * Only the preprocessing is cached: the words are read as text again, and the analyzers still
+ * tokenize them and apply stop words and stemming.
+ */
+class TokenCache {
+    private static final String LOG_TAG = "TokenCache";
+    private static final int MAGIC = 0x53464C54;
+    private static final int FORMAT_VERSION = 2;
+    private static final byte STATUS_TOKENS = 0;
+    // The charset of the file could not be detected, there are no tokens
+    private static final byte STATUS_UNREADABLE = 1;
+    private static final int HEADER_BYTES = 21;
+    private static final int DICTIONARY_POSITION_OFFSET = 13;
+    private static final int MAX_DICTIONARY_WORDS = 1 << 20;
+    private static final String ENTRY_FILE_EXTENSION = ".tok";
+    private static final String STAMPS_FOLDER_NAME = "stamps";
+    private static final int STAMP_MAGIC = 0x53464C53;
+    // Larger than the modification time resolution of common file systems
+    private static final long RACY_MARGIN_MILLIS = 2000;
+    // Smaller entries are read into the heap, mapping many small files costs more than reading them
+    private static final long MAP_THRESHOLD_BYTES = 64 * 1024;
+    private static final int HASH_BUFFER_SIZE = 8192;
+    // Releases mapped buffers, null if the JDK does not allow it
+    private static final Consumer<ByteBuffer> UNMAPPER = createUnmapper();
+
+    private final File cacheDir;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    TokenCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Same as {@link SourceAnalysis#openPreprocessedReader(File, int)}, but reads the preprocessed
+     * contents from the cache and adds them to it on a miss. Falls back to the source file if the
+     * file cannot be cached.
+     *
+     * @return the preprocessed contents or null if the charset of the file could not be detected
+     */
+    Reader openPreprocessedReader(File file, int bufferSize) throws IOException {
+        File entryFile = getEntryFile(contentHash(file));
+        if (entryFile.exists()) {
+            try {
+                Reader reader = openEntry(entryFile);
+                hits.incrementAndGet();
+                return reader;
+            } catch (CorruptEntryException e) {
+                Logger.debugLog(LOG_TAG, "Deleting invalid cache entry " + entryFile + ": " + e.getMessage());
+                Files.deleteIfExists(entryFile.toPath());
+            }
+        }
+
+        misses.incrementAndGet();
+        if (writeEntry(file, entryFile, bufferSize)) {
+            try {
+                return openEntry(entryFile);
+            } catch (CorruptEntryException e) {
+                Logger.debugLog(LOG_TAG, "Could not read new cache entry " + entryFile + ": " + e.getMessage());
+            }
+        }
+        return SourceAnalysis.openPreprocessedReader(file, bufferSize);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("token cache %s: %d hits, %d misses", cacheDir, hits.get(), misses.get());
+    }
+
+    private File getEntryFile(String hash) {
+        // Spread the entries over subfolders, large codebases have many files
+        return new File(new File(cacheDir, hash.substring(0, 2)),
+                hash + "-" + IdentifierSplittingReader.VERSION + ENTRY_FILE_EXTENSION);
+    }
+
+    /**
+     * @return the hash of the file contents, from its stamp if the file did not change since
+     */
+    private String contentHash(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        String pathHash = toHex(newDigest().digest(path.toString().getBytes(StandardCharsets.UTF_8)));
+        File stampFile = new File(new File(new File(cacheDir, STAMPS_FOLDER_NAME), pathHash.substring(0, 2)), pathHash);
+        String hash = readStamp(stampFile, size, modified);
+        if (hash != null) {
+            return hash;
+        }
+
+        hash = hash(file);
+        if (System.currentTimeMillis() - modified >= RACY_MARGIN_MILLIS) {
+            writeStamp(stampFile, size, modified, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the hash stored in the stamp, or null if there is no valid stamp for this size and modification time
+     */
+    private static String readStamp(File stampFile, long size, long modified) {
+        if (!stampFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(stampFile.toPath()))) {
+            if (in.readInt() != STAMP_MAGIC || in.readLong() != size || in.readLong() != modified) {
+                return null;
+            }
+            return in.readUTF();
+        } catch (IOException e) {
+            // Truncated or being replaced, hash the file instead
+            return null;
+        }
+    }
+
+    private static void writeStamp(File stampFile, long size, long modified, String hash) throws IOException {
+        File folder = stampFile.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Could not create cache folder " + folder);
+        }
+
+        File tempFile = new File(folder, stampFile.getName() + "_" + UUID.randomUUID());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tempFile.toPath(), StandardOpenOption.CREATE_NEW)))) {
+                out.writeInt(STAMP_MAGIC);
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeUTF(hash);
+            }
+            // Unlike entries, a stamp may be replaced, the file it belongs to could have changed
+            Files.move(tempFile.toPath(), stampFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            while (in.read(buffer) >= 0) {
+                // Only digesting
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return reader over the words of the entry, or null if the charset of the file could not be detected
+     * @throws CorruptEntryException if the entry is not valid, e.g. truncated
+     */
+    private static Reader openEntry(File entryFile) throws IOException {
+        ByteBuffer entry = readEntry(entryFile);
+        try {
+            if (entry.remaining() < HEADER_BYTES || entry.getInt() != MAGIC || entry.getInt() != FORMAT_VERSION
+                    || entry.getInt() != IdentifierSplittingReader.VERSION) {
+                throw new CorruptEntryException("unknown header");
+            }
+            byte status = entry.get();
+            if (status == STATUS_UNREADABLE) {
+                release(entry);
+                return null;
+            } else if (status != STATUS_TOKENS) {
+                throw new CorruptEntryException("unknown status " + status);
+            }
+            return new CachedTokenReader(entry);
+        } catch (CorruptEntryException e) {
+            release(entry);
+            throw e;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Thrown by the buffer for truncated entries and positions out of range
+            release(entry);
+            throw new CorruptEntryException(e.toString());
+        }
+    }
+
+    private static ByteBuffer readEntry(File entryFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(entryFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD_BYTES) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read fully
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Writes the entry of the file.
+     *
+     * @return false if the file has too many distinct words to be cached
+     */
+    private boolean writeEntry(File file, File entryFile, int bufferSize) throws IOException {
+        File folder = entryFile.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Could not create cache folder " + folder);
+        }
+
+        File tempFile = new File(folder, entryFile.getName() + "_" + UUID.randomUUID());
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                if (!writeEntry(file, bufferSize, out, channel)) {
+                    Logger.verboseLog(LOG_TAG, () -> "Not caching " + file + ", it has too many distinct words");
+                    return false;
+                }
+            }
+            moveIntoPlace(tempFile, entryFile);
+            return true;
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private static boolean writeEntry(File file, int bufferSize, DataOutputStream out, FileChannel channel)
+            throws IOException {
+        Map<String, Integer> wordIds = new LinkedHashMap<>();
+        int numTokens = 0;
+        try (Reader contents = SourceAnalysis.openPreprocessedReader(file, bufferSize)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(IdentifierSplittingReader.VERSION);
+            out.writeByte(contents != null ? STATUS_TOKENS : STATUS_UNREADABLE);
+            // Placeholder for the dictionary position, written once the tokens are complete
+            out.writeLong(0);
+
+            if (contents != null) {
+                StringBuilder word = new StringBuilder();
+                char[] buffer = new char[bufferSize];
+                int read;
+                boolean endOfInput = false;
+                while (!endOfInput) {
+                    read = contents.read(buffer);
+                    endOfInput = read < 0;
+                    for (int i = 0; i <= Math.max(read, 0); i++) {
+                        // Words end at a space and at the end of the input, but not at the end of a chunk
+                        boolean wordEnd = i < read ? buffer[i] == ' ' : endOfInput;
+                        if (i < read && !wordEnd) {
+                            word.append(buffer[i]);
+                        } else if (wordEnd && word.length() > 0) {
+                            writeVarInt(out, wordIds.computeIfAbsent(word.toString(), key -> wordIds.size()));
+                            numTokens++;
+                            word.setLength(0);
+                            if (wordIds.size() > MAX_DICTIONARY_WORDS) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        out.flush();
+        long dictionaryPosition = channel.position();
+        writeVarInt(out, numTokens);
+        writeVarInt(out, wordIds.size());
+        for (String word : wordIds.keySet()) {
+            // Preprocessed text only contains ASCII letters, digits and underscores
+            writeVarInt(out, word.length());
+            out.writeBytes(word);
+        }
+        out.flush();
+
+        ByteBuffer position = ByteBuffer.allocate(Long.BYTES).putLong(0, dictionaryPosition);
+        while (position.hasRemaining()) {
+            channel.write(position, DICTIONARY_POSITION_OFFSET + position.position());
+        }
+        return true;
+    }
+
+    private static void moveIntoPlace(File tempFile, File entryFile) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Another process wrote the same entry first, the contents are the same
+            if (!entryFile.exists()) {
+                throw e;
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) throws CorruptEntryException {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptEntryException("variable length int too long");
+    }
+
+    private static void release(ByteBuffer buffer) {
+        if (buffer instanceof MappedByteBuffer && UNMAPPER != null) {
+            UNMAPPER.accept(buffer);
+        }
+    }
+
+    /**
+     * Unmapping is only possible through JDK internals: Unsafe.invokeCleaner since Java 9 and the
+     * buffer's cleaner before, as done by Lucene. Without it the mapping is released once the buffer
+     * is garbage collected.
+     */
+    private static Consumer<ByteBuffer> createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Logger.debugLog(LOG_TAG, "Cannot unmap cache entries, they are released by the garbage collector");
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not unmap cache entry", e);
+        }
+    }
+
+    private static class CorruptEntryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private CorruptEntryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads the words of an entry separated by single spaces, directly from the entry buffer. The
+     * entry is checked completely when the reader is created, reading never fails afterwards.
+     */
+    private static class CachedTokenReader extends Reader {
+        private final ByteBuffer buffer;
+        private final int[] wordOffsets;
+        private final int[] wordLengths;
+        private int remainingTokens;
+        private boolean closed = false;
+
+        private int wordOffset = 0;
+        private int wordRemaining = 0;
+        private boolean separatorPending = false;
+
+        /**
+         * @param buffer entry positioned at the dictionary position
+         */
+        private CachedTokenReader(ByteBuffer buffer) throws CorruptEntryException {
+            this.buffer = buffer;
+            long dictionaryPosition = buffer.getLong();
+            int tokensPosition = buffer.position();
+            if (dictionaryPosition < tokensPosition || dictionaryPosition > buffer.limit()) {
+                throw new CorruptEntryException("dictionary position out of range");
+            }
+
+            buffer.position((int) dictionaryPosition);
+            int numTokens = readVarInt(buffer);
+            int numWords = readVarInt(buffer);
+            if (numWords > buffer.remaining()) {
+                throw new CorruptEntryException("dictionary larger than the entry");
+            }
+            wordOffsets = new int[numWords];
+            wordLengths = new int[numWords];
+            for (int i = 0; i < numWords; i++) {
+                wordLengths[i] = readVarInt(buffer);
+                wordOffsets[i] = buffer.position();
+                buffer.position(buffer.position() + wordLengths[i]);
+            }
+            if (buffer.hasRemaining()) {
+                throw new CorruptEntryException("trailing bytes after the dictionary");
+            }
+
+            buffer.position(tokensPosition);
+            for (int i = 0; i < numTokens; i++) {
+                if (readVarInt(buffer) >= numWords) {
+                    throw new CorruptEntryException("word id out of range");
+                }
+            }
+            if (buffer.position() != dictionaryPosition) {
+                throw new CorruptEntryException("token count does not match");
+            }
+            buffer.position(tokensPosition);
+            remainingTokens = numTokens;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            int read = 0;
+            while (read < length) {
+                if (wordRemaining > 0) {
+                    chars[offset + read++] = (char) buffer.get(wordOffset++);
+                    wordRemaining--;
+                } else if (separatorPending) {
+                    chars[offset + read++] = ' ';
+                    separatorPending = false;
+                } else if (remainingTokens > 0) {
+                    int wordId = readVarInt(buffer);
+                    wordOffset = wordOffsets[wordId];
+                    wordRemaining = wordLengths[wordId];
+                    separatorPending = --remainingTokens > 0;
+                } else {
+                    break;
+                }
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        /**
+         * Unmaps the entry, it must not be read afterwards.
+         */
+        @Override
+        public void close() {
+            remainingTokens = 0;
+            wordRemaining = 0;
+            separatorPending = false;
+            if (!closed) {
+                closed = true;
+                release(buffer);
+            }
+        }
+    }
+}